@@ -0,0 +1,76 @@
+package indi.sophronia.tools.cache.benchmark;
+
+import indi.sophronia.tools.cache.impl.FileCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * writes into a fresh {@link FileCache} for each invocation: one large batch into empty files,
+ * and many small groups of new keys over a large index, each group applied before the next one
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileCacheBenchmark {
+    @Param({"false", "true"})
+    private boolean memoryMapped;
+
+    private Path directory;
+
+    private FileCache cache;
+
+    private Map<String, String> batch;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("file-cache-benchmark");
+        cache = new FileCache(directory.resolve("cache").toString());
+        cache.setMemoryMapped(memoryMapped);
+        cache.init();
+
+        batch = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            batch.put("key" + i, "value" + i);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        cache.destroy();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void batchIntoEmptyCache() {
+        cache.saveBatchPersist(batch);
+        // a pattern query applies the logged writes
+        cache.scan(0, "none", 1);
+    }
+
+    @Benchmark
+    public void smallGroupsOverLargeIndex() {
+        cache.saveBatchPersist(batch);
+        cache.scan(0, "none", 1);
+        for (int group = 0; group < 2000; group++) {
+            Map<String, String> small = new HashMap<>();
+            for (int i = 0; i < 50; i++) {
+                small.put("new" + group + "-" + i, "value");
+            }
+            cache.saveBatchPersist(small);
+            cache.scan(0, "none", 1);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package indi.sophronia.tools.cache.benchmark;
+
+import indi.sophronia.tools.cache.impl.DefaultMemoryCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reads and writes of a bounded {@link DefaultMemoryCache} from several threads,
+ * with and without expiration, over twice as many keys as the cache holds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class MemoryCacheBenchmark {
+    private static final int KEYS = 1 << 17;
+
+    @Param({"0", "60000"})
+    private long expireMillis;
+
+    private DefaultMemoryCache cache;
+
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        cache = new DefaultMemoryCache();
+        cache.setMaximumSize(KEYS / 2);
+        cache.init();
+
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            cache.save(keys[i], keys[i], expireMillis);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.destroy();
+    }
+
+    @Benchmark
+    public void save() {
+        String key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        cache.save(key, key, expireMillis);
+    }
+
+    @Benchmark
+    public Object load() {
+        return cache.load(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    /**
+     * three reads for each write
+     */
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = keys[random.nextInt(KEYS)];
+        if (random.nextInt(4) == 0) {
+            cache.save(key, key, expireMillis);
+            return null;
+        }
+        return cache.load(key);
+    }
+}
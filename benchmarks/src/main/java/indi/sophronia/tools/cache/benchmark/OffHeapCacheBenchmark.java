@@ -0,0 +1,80 @@
+package indi.sophronia.tools.cache.benchmark;
+
+import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.impl.DefaultMemoryCache;
+import indi.sophronia.tools.cache.impl.OffHeapCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * stores 100k values of 2 KB into a fresh cache for each invocation, on the heap or in off-heap slabs.
+ * the heap kept by the filled cache is printed after each invocation, measured after a full collection
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx1g", "-XX:MaxDirectMemorySize=512m"})
+public class OffHeapCacheBenchmark {
+    private static final int KEYS = 100_000;
+
+    @Param({"memory", "offheap"})
+    private String tier;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private String[] keys;
+
+    private String value;
+
+    private CacheFacade cache;
+
+    private long heapBefore;
+
+    @Setup
+    public void setUpValues() {
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+        value = "x".repeat(2048);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        if ("offheap".equals(tier)) {
+            OffHeapCache offHeap = new OffHeapCache();
+            offHeap.setCapacity(256L << 20);
+            cache = offHeap;
+        } else {
+            cache = new DefaultMemoryCache();
+        }
+        cache.init();
+        heapBefore = usedHeap();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        System.out.printf("%n%s tier kept %d KB of heap%n", tier, (usedHeap() - heapBefore) >> 10);
+        cache.destroy();
+    }
+
+    private long usedHeap() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * the values are copies, as values read from a file or the network would be
+     */
+    @Benchmark
+    public void fill() {
+        for (String key : keys) {
+            cache.savePersist(key, new String(value.toCharArray()));
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package indi.sophronia.tools.cache;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.function.Supplier;
 
 public interface CacheFacade {
@@ -16,6 +13,16 @@ public interface CacheFacade {
 
     Set<String> keys(String pattern);
 
+    /**
+     * iterates the keys matching the pattern page by page, in the manner of the redis SCAN command.
+     * a scan starts with cursor 0 and is complete once 0 is returned again.
+     * keys present during the whole scan are returned at least once, possibly more than once.
+     * the cursors of a single cache stay below 2^48, the bits above tell apart the sources of a cache made of others
+     *
+     * @param count number of keys examined for the page, the page may hold fewer or, to end on a position, more
+     */
+    ScanPage scan(long cursor, String pattern, int count);
+
     <T> void save(String key, T value, long expireMillis);
 
     <T> void savePersist(String key, T value);
@@ -26,6 +33,11 @@ public interface CacheFacade {
 
     <T> T load(String key);
 
+    /**
+     * @return the expiration time of the key, 0 if it never expires, -1 if absent or expired
+     */
+    long expireAt(String key);
+
     default <T> T loadOrSave(String key, Supplier<T> defaultValue, long expireMillis) {
         T value = load(key);
         if (value != null) {
@@ -0,0 +1,28 @@
+package indi.sophronia.tools.cache;
+
+import java.util.List;
+
+/**
+ * one page of {@link CacheFacade#scan}
+ */
+public class ScanPage {
+    public ScanPage(long cursor, List<String> keys) {
+        this.cursor = cursor;
+        this.keys = keys;
+    }
+
+    private final long cursor;
+
+    private final List<String> keys;
+
+    /**
+     * @return the cursor to pass for the next page, 0 once the scan is complete
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+}
@@ -1,11 +1,10 @@
 package indi.sophronia.tools.cache.impl;
 
 import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.function.Supplier;
 
 public class BufferedCache extends DefaultMemoryCache {
@@ -17,6 +16,31 @@ public class BufferedCache extends DefaultMemoryCache {
 
     private boolean asyncUpdateUpstream;
 
+    private long refreshAheadMillis = TimeUnit.SECONDS.toMillis(1);
+
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * keys upstream recently did not have, so that repeated misses do not reach it.
+     * a save of the key drops its mark
+     */
+    private final DefaultMemoryCache misses = new DefaultMemoryCache();
+
+    private long negativeCacheMillis = TimeUnit.SECONDS.toMillis(5);
+
+    private int writeBehindCapacity = 65536;
+
+    private boolean shedWhenFull;
+
+    /**
+     * carries the writes to upstream when they are asynchronous
+     */
+    private WriteBehindQueue writeBehind;
+
+    {
+        misses.setMaximumSize(10000);
+    }
+
     public void setUpstream(CacheFacade upstream) {
         this.upstream = upstream;
     }
@@ -25,17 +49,68 @@ public class BufferedCache extends DefaultMemoryCache {
         this.asyncUpdateUpstream = asyncUpdateUpstream;
     }
 
+    /**
+     * @param refreshAheadMillis an entry read this close to its expiration is reloaded from upstream
+     *                           in the background, 0 to disable
+     */
+    public void setRefreshAheadMillis(long refreshAheadMillis) {
+        this.refreshAheadMillis = refreshAheadMillis;
+    }
+
+    /**
+     * @param negativeCacheMillis how long a miss of upstream is remembered, 0 to disable
+     */
+    public void setNegativeCacheMillis(long negativeCacheMillis) {
+        this.negativeCacheMillis = negativeCacheMillis;
+    }
+
+    /**
+     * @param negativeCacheSize number of misses remembered at most
+     */
+    public void setNegativeCacheSize(long negativeCacheSize) {
+        misses.setMaximumSize(negativeCacheSize);
+    }
+
+    /**
+     * @param writeBehindCapacity number of keys with an asynchronous write pending at most
+     */
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+
+    /**
+     * @param shedWhenFull whether an asynchronous write is dropped rather than waited for when too many are pending,
+     *                     the memory still gets it
+     */
+    public void setShedWhenFull(boolean shedWhenFull) {
+        this.shedWhenFull = shedWhenFull;
+    }
+
     @Override
     public void init() {
         super.init();
+        misses.init();
         upstream.init();
+        if (asyncUpdateUpstream) {
+            writeBehind = new WriteBehindQueue(upstream, writeBehindCapacity, shedWhenFull);
+        }
     }
 
     @Override
     public void destroy() {
         super.destroy();
-        upstream.destroy();
+        misses.destroy();
+        // refreshes still running read upstream
         asyncUpdate.shutdown();
+        try {
+            asyncUpdate.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        upstream.destroy();
     }
 
     @Override
@@ -46,13 +121,124 @@ public class BufferedCache extends DefaultMemoryCache {
         return cacheKeys;
     }
 
+    /**
+     * pages come from upstream and then from memory, for the keys only present here such as those of
+     * pending asynchronous writes. the memory pages have the sign bit of their cursor set,
+     * and leave out the keys upstream has returned already
+     */
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        if (cursor < 0) {
+            ScanPage page = super.scan(cursor & Long.MAX_VALUE, pattern, count);
+            List<String> keys = new ArrayList<>(page.getKeys().size());
+            for (String key : page.getKeys()) {
+                if (writeBehind != null && writeBehind.pending(key) != null || upstream.expireAt(key) < 0) {
+                    keys.add(key);
+                }
+            }
+            return new ScanPage(page.getCursor() == 0 ? 0 : page.getCursor() | Long.MIN_VALUE, keys);
+        }
+
+        ScanPage page = upstream.scan(cursor, pattern, count);
+        return page.getCursor() == 0 ? new ScanPage(Long.MIN_VALUE, page.getKeys()) : page;
+    }
+
+    @SuppressWarnings("unchecked")
     @Override
     public <T> T load(String key) {
-        return super.loadOrSave(
+        // buffers what upstream returns without writing it back
+        Object[] pair = super.loadOrSaveInternal(
                 key,
-                () -> upstream.load(key),
+                () -> loadUpstream(key),
                 EXPIRE_FOR_BUFFER
         );
+        if (pair[0] != null && Boolean.FALSE.equals(pair[1])) {
+            refreshAhead(key, pair[0]);
+        }
+        return (T) pair[0];
+    }
+
+    /**
+     * the copy kept in memory expires earlier, but it is reloaded before while in use
+     */
+    @Override
+    public long expireAt(String key) {
+        if (writeBehind != null) {
+            Object[] pending = writeBehind.pending(key);
+            if (pending != null) {
+                long expireMillis = (long) pending[1];
+                return pending[0] == null ? -1 : expireMillis == 0 ? 0 : System.currentTimeMillis() + expireMillis;
+            }
+        }
+        return upstream.expireAt(key);
+    }
+
+    private Object loadUpstream(String key) {
+        if (writeBehind != null) {
+            Object[] pending = writeBehind.pending(key);
+            if (pending != null) {
+                return pending[0];
+            }
+        }
+        if (negativeCacheMillis <= 0) {
+            return upstream.load(key);
+        }
+        if (misses.load(key) != null) {
+            return null;
+        }
+
+        Object value = upstream.load(key);
+        if (value == null) {
+            recordMiss(key);
+        }
+        return value;
+    }
+
+    /**
+     * a save racing with the lookup puts the key into memory before it drops the mark,
+     * so the mark is dropped again if the key is found there afterwards
+     */
+    private void recordMiss(String key) {
+        misses.save(key, Boolean.TRUE, negativeCacheMillis);
+        if (expireAtLocally(key) >= 0) {
+            misses.invalidate(key);
+        }
+    }
+
+    /**
+     * reloads a hit close to its expiration, so that readers of hot keys do not wait for upstream once it expires.
+     * the reloaded value is dropped if the key was written meanwhile, and kept no longer than upstream keeps it
+     */
+    private void refreshAhead(String key, Object value) {
+        if (refreshAheadMillis <= 0) {
+            return;
+        }
+
+        long expireAt = expireAtLocally(key);
+        if (expireAt <= 0 || expireAt - System.currentTimeMillis() > refreshAheadMillis || !refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            asyncUpdate.execute(() -> {
+                try {
+                    Object refreshed = upstream.load(key);
+                    long upstreamExpireAt = refreshed == null ? -1 : upstream.expireAt(key);
+                    if (upstreamExpireAt >= 0) {
+                        long bufferExpireAt = System.currentTimeMillis() + EXPIRE_FOR_BUFFER;
+                        replaceLocally(key, value, refreshed,
+                                upstreamExpireAt == 0 ? bufferExpireAt : Math.min(bufferExpireAt, upstreamExpireAt));
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("fail to refresh " + key + ": " + e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // destroyed
+            refreshing.remove(key);
+        }
     }
 
     @Override
@@ -62,9 +248,20 @@ public class BufferedCache extends DefaultMemoryCache {
         Set<String> inKeys = keys instanceof Set ? (Set<String>) keys : new HashSet<>(keys);
         Set<String> missing = new HashSet<>(inKeys);
         missing.removeAll(inMemory.keySet());
+        if (negativeCacheMillis > 0) {
+            missing.removeAll(misses.loadBatch(missing).keySet());
+        }
 
         Map<String, T> fromRemote = upstream.loadBatch(missing);
-        saveBatch(fromRemote, EXPIRE_FOR_BUFFER);
+        if (negativeCacheMillis > 0) {
+            for (String key : missing) {
+                if (!fromRemote.containsKey(key)) {
+                    recordMiss(key);
+                }
+            }
+        }
+        long expireAt = System.currentTimeMillis() + EXPIRE_FOR_BUFFER;
+        fromRemote.forEach((key, value) -> saveLocally(key, value, expireAt));
 
         Map<String, T> results = new HashMap<>(inMemory.size() + fromRemote.size());
         results.putAll(inMemory);
@@ -76,11 +273,8 @@ public class BufferedCache extends DefaultMemoryCache {
     protected Object[] loadOrSaveInternal(String key, Supplier<?> defaultValue, long expireMillis) {
         Object[] pair = super.loadOrSaveInternal(key, defaultValue, expireMillis);
         if (Boolean.TRUE.equals(pair[1])) {
-            if (asyncUpdateUpstream) {
-                asyncUpdate.execute(() -> upstream.save(key, pair[0], expireMillis));
-            } else {
-                upstream.save(key, pair[0], expireMillis);
-            }
+            misses.invalidate(key);
+            saveUpstream(key, pair[0], expireMillis);
         }
         return pair;
     }
@@ -88,28 +282,23 @@ public class BufferedCache extends DefaultMemoryCache {
     @Override
     public <T> void save(String key, T value, long expireMillis) {
         super.save(key, value, expireMillis);
-        if (asyncUpdateUpstream) {
-            asyncUpdate.execute(() -> upstream.save(key, value, expireMillis));
-        } else {
-            upstream.save(key, value, expireMillis);
+        misses.invalidate(key);
+        if (value != null) {
+            saveUpstream(key, value, expireMillis);
         }
     }
 
     @Override
     public <T> void savePersist(String key, T value) {
-        super.savePersist(key, value);
-        if (asyncUpdateUpstream) {
-            asyncUpdate.execute(() -> upstream.savePersist(key, value));
-        } else {
-            upstream.savePersist(key, value);
-        }
+        save(key, value, 0L);
     }
 
     @Override
     public <T> void saveBatch(Map<String, T> data, long expireMillis) {
         super.saveBatch(data, expireMillis);
-        if (asyncUpdateUpstream) {
-            asyncUpdate.execute(() -> upstream.saveBatch(data, expireMillis));
+        misses.invalidateBatch(data.keySet());
+        if (writeBehind != null) {
+            data.forEach((key, value) -> writeBehind.save(key, value, expireMillis));
         } else {
             upstream.saveBatch(data, expireMillis);
         }
@@ -117,19 +306,14 @@ public class BufferedCache extends DefaultMemoryCache {
 
     @Override
     public <T> void saveBatchPersist(Map<String, T> data) {
-        super.saveBatchPersist(data);
-        if (asyncUpdateUpstream) {
-            asyncUpdate.execute(() -> upstream.saveBatchPersist(data));
-        } else {
-            upstream.saveBatchPersist(data);
-        }
+        saveBatch(data, 0L);
     }
 
     @Override
     public void invalidate(String key) {
         super.invalidate(key);
-        if (asyncUpdateUpstream) {
-            asyncUpdate.execute(() -> upstream.invalidate(key));
+        if (writeBehind != null) {
+            writeBehind.invalidate(key);
         } else {
             upstream.invalidate(key);
         }
@@ -138,6 +322,18 @@ public class BufferedCache extends DefaultMemoryCache {
     @Override
     public void invalidateBatch(Collection<String> keys) {
         super.invalidateBatch(keys);
-        upstream.invalidateBatch(keys);
+        if (writeBehind != null) {
+            keys.forEach(writeBehind::invalidate);
+        } else {
+            upstream.invalidateBatch(keys);
+        }
+    }
+
+    private void saveUpstream(String key, Object value, long expireMillis) {
+        if (writeBehind != null) {
+            writeBehind.save(key, value, expireMillis);
+        } else {
+            upstream.save(key, value, expireMillis);
+        }
     }
 }
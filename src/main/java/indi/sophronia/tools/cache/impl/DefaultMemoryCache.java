@@ -1,57 +1,188 @@
 package indi.sophronia.tools.cache.impl;
 
 import indi.sophronia.tools.cache.CacheFacade;
-import indi.sophronia.tools.util.StringHelper;
+import indi.sophronia.tools.cache.ScanPage;
+import indi.sophronia.tools.util.GlobPattern;
+import indi.sophronia.tools.util.Rethrow;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
+import java.util.function.ToIntBiFunction;
 
 public class DefaultMemoryCache implements CacheFacade {
-    private static class CachedEntry {
-        private final String key;
-        private volatile Object value;
-        private volatile long state;
-        private final StampedLock lock;
+    /**
+     * value and state of an entry, replaced as a whole so that a reader sees a consistent pair without locking.
+     * state: 0 for persist, positive for expiration time, -1 for removed
+     */
+    private static final class Holder {
+        private final Object value;
+        private final long state;
+        private final int weight;
 
-        private CachedEntry(String key, Object value, long state) {
-            this.key = key;
+        private Holder(Object value, long state, int weight) {
             this.value = value;
             this.state = state;
-            this.lock = new StampedLock();
+            this.weight = weight;
+        }
+    }
+
+    private static final Holder REMOVED = new Holder(null, -1, 0);
+
+    private static class CachedEntry extends TimerWheel.Node {
+        private static final VarHandle HOLDER;
+
+        static {
+            try {
+                HOLDER = MethodHandles.lookup().findVarHandle(CachedEntry.class, "holder", Holder.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final String key;
+        private volatile Holder holder;
+
+        // position in the eviction policy, guarded by the policy lock
+        private int queue;
+        private int policyWeight;
+        private CachedEntry previous;
+        private CachedEntry next;
+
+        private CachedEntry(String key, Holder holder) {
+            this.key = key;
+            this.holder = holder;
+        }
+
+        private boolean compareAndSet(Holder expected, Holder update) {
+            return HOLDER.compareAndSet(this, expected, update);
+        }
+
+        @Override
+        long expireAt() {
+            return holder.state;
         }
     }
 
     public DefaultMemoryCache() {
         this.init = new AtomicBoolean(false);
         this.destroy = new AtomicBoolean(false);
-        this.memoryCache = new ConcurrentHashMap<>();
+        this.memoryCache = new SegmentedMap<>();
         this.cacheCleaner = Executors.newSingleThreadScheduledExecutor();
     }
 
     private final AtomicBoolean init;
     private final AtomicBoolean destroy;
-    private final ConcurrentMap<String, CachedEntry> memoryCache;
+    private final SegmentedMap<CachedEntry> memoryCache;
     private final ScheduledExecutorService cacheCleaner;
+    private final ConcurrentMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * W-TinyLFU: new entries enter a small lru window, entries leaving the window compete with the
+     * least recent entry of the probation segment, and the one used less often according to the sketch is evicted.
+     * entries used again in probation are promoted to the protected segment
+     */
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    /**
+     * reads are recorded into a lossy ring and replayed into the policy in batches,
+     * so that hits do not contend on the policy lock
+     */
+    private static final int READ_BUFFER_SIZE = 128;
+
+    /**
+     * writes are queued and replayed into the policy and the timer wheel by whichever thread gets the policy lock,
+     * writers only wait for it once this many are pending
+     */
+    private static final int WRITE_BUFFER_SIZE = 1024;
+
+    /**
+     * guards the policy and the timer wheel
+     */
+    private final Lock policyLock = new ReentrantLock();
+    private final AccessOrder window = new AccessOrder();
+    private final AccessOrder probation = new AccessOrder();
+    private final AccessOrder protectedSegment = new AccessOrder();
+    private final AtomicReferenceArray<CachedEntry> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readCount = new AtomicLong();
+    private final Queue<CachedEntry> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writeCount = new AtomicInteger();
+
+    /**
+     * 0 for no bound, compared with the entry count unless a weigher is set
+     */
+    private long maximum;
+    private ToIntBiFunction<String, Object> weigher;
+    private FrequencySketch sketch;
+
+    /**
+     * the keys in order when the key index is on, may still hold keys being removed, and holds a key once its save returns
+     */
+    private NavigableSet<String> sortedKeys;
+
+    private long expirationPrecision = TimeUnit.SECONDS.toMillis(1);
+    private TimerWheel timerWheel = new TimerWheel(expirationPrecision, System.currentTimeMillis());
+
+    /**
+     * @param maximumSize number of entries kept at most, 0 for no bound
+     */
+    public void setMaximumSize(long maximumSize) {
+        this.maximum = maximumSize;
+        this.weigher = null;
+        this.sketch = maximumSize > 0 ? new FrequencySketch(maximumSize) : null;
+    }
+
+    /**
+     * @param maximumWeight estimated bytes of the entries kept at most, 0 for no bound
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        setMaximumWeight(maximumWeight, DefaultMemoryCache::estimateBytes);
+    }
+
+    /**
+     * @param maximumWeight total weight of the entries kept at most, 0 for no bound
+     * @param weigher weight of an entry from its key and value, computed on every write
+     */
+    public void setMaximumWeight(long maximumWeight, ToIntBiFunction<String, Object> weigher) {
+        this.maximum = maximumWeight;
+        this.weigher = weigher;
+        // sized for entries of a few hundred bytes
+        this.sketch = maximumWeight > 0 ? new FrequencySketch(maximumWeight / 256) : null;
+    }
+
+    /**
+     * @param expirationPrecision millis, expired entries are removed at most this late, 1 second by default
+     */
+    public void setExpirationPrecision(long expirationPrecision) {
+        this.timerWheel = new TimerWheel(expirationPrecision, System.currentTimeMillis());
+        this.expirationPrecision = expirationPrecision;
+    }
+
+    /**
+     * @param keyIndex whether the keys are kept in order as well, so that a pattern query reads only the range
+     *                 of its literal prefix. every insertion and removal then costs a lookup in a skip list
+     */
+    public void setKeyIndex(boolean keyIndex) {
+        this.sortedKeys = keyIndex ? new ConcurrentSkipListSet<>() : null;
+    }
 
     @Override
     public void init() {
         if (init.compareAndSet(false, true)) {
             cacheCleaner.scheduleAtFixedRate(
-                    () -> {
-                        long timestamp = System.currentTimeMillis();
-                        for (CachedEntry value : memoryCache.values()) {
-                            if (value.state > 0 && value.state < timestamp) {
-                                doRemoveCache(value);
-                            }
-                        }
-                    },
-                    5, 5, TimeUnit.SECONDS
+                    this::expireEntries,
+                    expirationPrecision, expirationPrecision, TimeUnit.MILLISECONDS
             );
         }
     }
@@ -65,7 +196,8 @@ public class DefaultMemoryCache implements CacheFacade {
 
     @Override
     public Set<String> keys(String pattern) {
-        if (!pattern.contains("*")) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        if (glob.isLiteral()) {
             Set<String> set = new HashSet<>(1);
             if (memoryCache.containsKey(pattern)) {
                 set.add(pattern);
@@ -73,11 +205,35 @@ public class DefaultMemoryCache implements CacheFacade {
             return set;
         }
 
-        Set<String> keys = new HashSet<>(memoryCache.keySet());
-        StringHelper.filterKeysByPattern(keys, pattern);
+        Set<String> keys = new HashSet<>();
+        String prefix = glob.literalPrefix();
+        if (sortedKeys != null && !prefix.isEmpty()) {
+            for (String key : sortedKeys.tailSet(prefix)) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (glob.matches(key) && memoryCache.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+
+        // the map is unordered, so every key is tested, but only the matching ones are copied
+        memoryCache.forEach((key, cachedEntry) -> {
+            if (glob.matches(key)) {
+                keys.add(key);
+            }
+        });
         return keys;
     }
 
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        return memoryCache.scan(cursor, (key, cachedEntry) -> glob.matches(key), count);
+    }
+
     @Override
     public <T> void save(String key, T value, long expireMillis) {
         if (value == null) {
@@ -87,19 +243,7 @@ public class DefaultMemoryCache implements CacheFacade {
 
         long expireAt = expireMillis == 0 ?
                 0 : System.currentTimeMillis() + expireMillis;
-        CachedEntry cachedEntry = memoryCache.get(key);
-        if (cachedEntry != null) {
-            long stamp = cachedEntry.lock.writeLock();
-            if (cachedEntry.state < 0) {
-                memoryCache.put(key, new CachedEntry(key, value, expireAt));
-            } else {
-                cachedEntry.value = value;
-                cachedEntry.state = expireAt;
-            }
-            cachedEntry.lock.unlockWrite(stamp);
-        } else {
-            memoryCache.put(key, new CachedEntry(key, value, expireAt));
-        }
+        saveLocally(key, value, expireAt);
     }
 
     @Override
@@ -114,7 +258,11 @@ public class DefaultMemoryCache implements CacheFacade {
         for (Map.Entry<String, T> entry : data.entrySet()) {
             String key = entry.getKey();
             Object value = entry.getValue();
-            save(key, value, expireAt);
+            if (value == null) {
+                invalidate(key);
+            } else {
+                saveLocally(key, value, expireAt);
+            }
         }
     }
 
@@ -123,10 +271,135 @@ public class DefaultMemoryCache implements CacheFacade {
         saveBatch(data, 0L);
     }
 
+    /**
+     * saves into memory only, never goes through the overridable save methods,
+     * so subclasses forwarding writes to other tiers are not triggered
+     */
+    protected final void saveLocally(String key, Object value, long expireAt) {
+        Holder update = new Holder(value, expireAt, weigh(key, value));
+        while (true) {
+            CachedEntry cachedEntry = memoryCache.get(key);
+            if (cachedEntry == null) {
+                if (insert(null, key, update)) {
+                    return;
+                }
+                continue;
+            }
+
+            Holder holder = cachedEntry.holder;
+            if (holder.state < 0) {
+                // removed, and dropped from the map by its remover unless replaced first
+                if (insert(cachedEntry, key, update)) {
+                    return;
+                }
+                continue;
+            }
+            if (cachedEntry.compareAndSet(holder, update)) {
+                if (holder.weight != update.weight || update.state > 0) {
+                    afterWrite(cachedEntry);
+                } else {
+                    afterRead(cachedEntry);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * replaces the value in memory only if it is still the expected one, compared by identity
+     *
+     * @return false if the key was written, removed or expired meanwhile
+     */
+    protected final boolean replaceLocally(String key, Object expected, Object value, long expireAt) {
+        CachedEntry cachedEntry = memoryCache.get(key);
+        if (cachedEntry == null) {
+            return false;
+        }
+
+        Holder update = new Holder(value, expireAt, weigh(key, value));
+        while (true) {
+            Holder holder = cachedEntry.holder;
+            if (holder.value != expected || readValueFrom(cachedEntry) == null) {
+                return false;
+            }
+            if (cachedEntry.compareAndSet(holder, update)) {
+                if (holder.weight != update.weight || update.state > 0) {
+                    afterWrite(cachedEntry);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the expiration time of the key in memory, 0 if it never expires, -1 if absent or expired
+     */
+    protected final long expireAtLocally(String key) {
+        CachedEntry cachedEntry = memoryCache.get(key);
+        if (cachedEntry == null) {
+            return -1;
+        }
+
+        long state = cachedEntry.holder.state;
+        return state == 0 || state > System.currentTimeMillis() ? state : -1;
+    }
+
+    /**
+     * maps a new entry only in place of the expected one, so that a live entry written meanwhile is updated instead
+     * and never dropped from the map without being marked removed
+     *
+     * @param expected null for an absent key, otherwise an entry marked removed
+     * @return false if the map has changed meanwhile
+     */
+    private boolean insert(CachedEntry expected, String key, Holder holder) {
+        CachedEntry cachedEntry = new CachedEntry(key, holder);
+        boolean inserted = expected == null ?
+                memoryCache.putIfAbsent(key, cachedEntry) == null : memoryCache.replace(key, expected, cachedEntry);
+        if (inserted) {
+            if (sortedKeys != null) {
+                sortedKeys.add(key);
+            }
+            afterWrite(cachedEntry);
+        }
+        return inserted;
+    }
+
+    /**
+     * drops an entry marked removed from the map, and its key from the index unless mapped again meanwhile
+     */
+    private void unmap(CachedEntry cachedEntry) {
+        if (memoryCache.remove(cachedEntry.key, cachedEntry) && sortedKeys != null) {
+            sortedKeys.remove(cachedEntry.key);
+            if (memoryCache.containsKey(cachedEntry.key)) {
+                sortedKeys.add(cachedEntry.key);
+            }
+        }
+    }
+
     @Override
     public <T> T load(String key) {
+        return loadLocally(key);
+    }
+
+    @Override
+    public long expireAt(String key) {
+        return expireAtLocally(key);
+    }
+
+    /**
+     * reads memory only, never goes through the overridable load
+     */
+    private <T> T loadLocally(String key) {
         CachedEntry cachedEntry = memoryCache.get(key);
-        return cachedEntry == null ? null : readValueFrom(cachedEntry);
+        if (cachedEntry == null) {
+            return null;
+        }
+
+        T value = readValueFrom(cachedEntry);
+        if (value != null) {
+            afterRead(cachedEntry);
+        }
+        return value;
     }
 
     @SuppressWarnings("unchecked")
@@ -141,50 +414,48 @@ public class DefaultMemoryCache implements CacheFacade {
     }
 
     /**
-     * @return [value, (true if value is supplied)]
+     * concurrent misses of a key share one call of the supplier, the others wait for its result.
+     * the supplier should not load the same key again
+     *
+     * @return [value, (true if value is supplied)], only the caller whose supplier ran gets true
      */
     protected Object[] loadOrSaveInternal(String key, Supplier<?> defaultValue, long expireMillis) {
-        long expireAt = expireMillis == 0 ?
-                0 : System.currentTimeMillis() + expireMillis;
-
-        CachedEntry cachedEntry = memoryCache.get(key);
-        if (cachedEntry == null) {
-            Object value = defaultValue.get();
-            if (value != null) {
-                save(key, value, expireMillis);
-                return new Object[]{value, true};
-            } else {
-                return new Object[]{null, false};
-            }
-        }
-
-        Object value = readValueFrom(cachedEntry);
+        Object value = loadLocally(key);
         if (value != null) {
             return new Object[]{value, false};
         }
 
-        long wl = cachedEntry.lock.writeLock();
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loading.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            try {
+                return new Object[]{inFlight.join(), false};
+            } catch (CompletionException e) {
+                throw Rethrow.rethrow(e.getCause());
+            }
+        }
+
         try {
-            if (cachedEntry.state < 0) {
-                value = defaultValue.get();
-                if (value != null) {
-                    save(key, value, expireAt);
-                }
-                return new Object[]{value, true};
+            // a load finished between the miss and the registration
+            value = loadLocally(key);
+            if (value != null) {
+                flight.complete(value);
+                return new Object[]{value, false};
             }
 
             value = defaultValue.get();
-            if (value == null) {
-                cachedEntry.state = -1;
-                memoryCache.remove(key);
-                return new Object[]{null, false};
+            if (value != null) {
+                long expireAt = expireMillis == 0 ?
+                        0 : System.currentTimeMillis() + expireMillis;
+                saveLocally(key, value, expireAt);
             }
-
-            cachedEntry.state = expireAt;
-            cachedEntry.value = value;
-            return new Object[]{value, true};
+            flight.complete(value);
+            return new Object[]{value, value != null};
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
         } finally {
-            cachedEntry.lock.unlockWrite(wl);
+            loading.remove(key, flight);
         }
     }
 
@@ -205,33 +476,370 @@ public class DefaultMemoryCache implements CacheFacade {
 
     @SuppressWarnings("unchecked")
     private static  <T> T readValueFrom(CachedEntry cachedEntry) {
-        long stamp = cachedEntry.lock.tryOptimisticRead();
-        long state = cachedEntry.state;
-        Object value = cachedEntry.value;
-
-        if (!cachedEntry.lock.validate(stamp)) {
-            stamp = cachedEntry.lock.readLock();
-            state = cachedEntry.state;
-            value = cachedEntry.value;
-            cachedEntry.lock.unlockRead(stamp);
-        }
-
+        Holder holder = cachedEntry.holder;
+        long state = holder.state;
         if (state == 0 || state > System.currentTimeMillis()) {
-            return (T) value;
+            return (T) holder.value;
         } else {
             return null;
         }
     }
 
     private void doRemoveCache(CachedEntry cachedEntry) {
-        long stamp = cachedEntry.lock.writeLock();
-        try {
-            if (cachedEntry.state >= 0) {
-                cachedEntry.state = -1;
-                memoryCache.remove(cachedEntry.key);
+        while (true) {
+            Holder holder = cachedEntry.holder;
+            if (holder.state < 0) {
+                // the remover has queued it
+                break;
             }
+            if (cachedEntry.compareAndSet(holder, REMOVED)) {
+                unmap(cachedEntry);
+                if (maximum > 0 || holder.state > 0) {
+                    afterWrite(cachedEntry);
+                }
+                break;
+            }
+        }
+    }
+
+    private void expireEntries() {
+        long timestamp = System.currentTimeMillis();
+        List<TimerWheel.Node> expired;
+        List<CachedEntry> evicted;
+        policyLock.lock();
+        try {
+            // the pending writes may have rescheduled some entries
+            evicted = maintain();
+            expired = timerWheel.advance(timestamp);
         } finally {
-            cachedEntry.lock.unlockWrite(stamp);
+            policyLock.unlock();
+        }
+        removeEvicted(evicted);
+
+        for (TimerWheel.Node node : expired) {
+            CachedEntry cachedEntry = (CachedEntry) node;
+            Holder holder = cachedEntry.holder;
+            // an update after the wheel fired fails the exchange and has scheduled the entry again
+            if (holder.state > 0 && holder.state <= timestamp && cachedEntry.compareAndSet(holder, REMOVED)) {
+                unmap(cachedEntry);
+                if (maximum > 0) {
+                    afterWrite(cachedEntry);
+                }
+            }
+        }
+    }
+
+    private int weigh(String key, Object value) {
+        if (maximum <= 0) {
+            return 0;
+        }
+        return weigher == null ? 1 : weigher.applyAsInt(key, value);
+    }
+
+    /**
+     * rough heap footprint of an entry: the map node, the entry with its holder, the key and a string value
+     */
+    private static int estimateBytes(String key, Object value) {
+        long bytes = 112 + estimateBytes(key);
+        if (value instanceof String) {
+            bytes += estimateBytes((String) value);
+        } else if (value instanceof byte[]) {
+            bytes += 16 + ((byte[]) value).length;
+        } else {
+            bytes += 16;
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    private static long estimateBytes(String text) {
+        // compact strings keep a byte per char unless one char is beyond latin-1
+        int charBytes = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                charBytes = 2;
+                break;
+            }
+        }
+        return 40 + (long) text.length() * charBytes;
+    }
+
+    private void afterRead(CachedEntry cachedEntry) {
+        if (maximum <= 0) {
+            return;
+        }
+
+        long count = readCount.getAndIncrement();
+        int slot = (int) count & (READ_BUFFER_SIZE - 1);
+        readBuffer.lazySet(slot, cachedEntry);
+        if (slot == READ_BUFFER_SIZE - 1) {
+            drainBuffers(false);
+        }
+    }
+
+    /**
+     * queues an entry inserted, updated or removed, for the policy and the timer wheel to take its new state.
+     * should be called after the state is set
+     */
+    private void afterWrite(CachedEntry cachedEntry) {
+        if (maximum <= 0 && cachedEntry.holder.state == 0) {
+            // neither bounded nor expiring
+            return;
+        }
+
+        writeBuffer.offer(cachedEntry);
+        // the writers outpace the draining, wait for it
+        drainBuffers(writeCount.incrementAndGet() > WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * replays the buffers if the policy lock is free, or once it is if asked to wait.
+     * the buffer is checked again after the lock is released, a write queued while it was held
+     * whose writer failed to take it would be left behind otherwise
+     */
+    private void drainBuffers(boolean wait) {
+        do {
+            if (wait) {
+                policyLock.lock();
+            } else if (!policyLock.tryLock()) {
+                return;
+            }
+
+            List<CachedEntry> evicted;
+            try {
+                evicted = maintain();
+            } finally {
+                policyLock.unlock();
+            }
+            removeEvicted(evicted);
+            wait = false;
+        } while (!writeBuffer.isEmpty());
+    }
+
+    /**
+     * replays the buffered reads and writes, then evicts.
+     * should be called with the policy lock held
+     *
+     * @return the entries to remove from the map, already unlinked and unscheduled
+     */
+    private List<CachedEntry> maintain() {
+        if (maximum > 0) {
+            drainReadBuffer();
+        }
+        CachedEntry cachedEntry;
+        while ((cachedEntry = writeBuffer.poll()) != null) {
+            writeCount.decrementAndGet();
+            onWrite(cachedEntry);
+        }
+        if (maximum <= 0) {
+            return List.of();
+        }
+
+        List<CachedEntry> evicted = evict();
+        for (CachedEntry victim : evicted) {
+            timerWheel.remove(victim);
+        }
+        return evicted;
+    }
+
+    /**
+     * takes the current state of an entry, however many writes it was queued for
+     */
+    private void onWrite(CachedEntry cachedEntry) {
+        Holder holder = cachedEntry.holder;
+        if (holder.state < 0) {
+            timerWheel.remove(cachedEntry);
+            unlink(cachedEntry);
+            return;
+        }
+        if (holder.state > 0) {
+            timerWheel.schedule(cachedEntry, holder.state);
+        }
+        if (maximum <= 0) {
+            return;
+        }
+
+        if (cachedEntry.queue != NONE) {
+            queueOf(cachedEntry).reweigh(cachedEntry, holder.weight);
+            onAccess(cachedEntry);
+        } else {
+            sketch.increment(hash(cachedEntry.key));
+            cachedEntry.policyWeight = holder.weight;
+            window.addLast(cachedEntry, WINDOW);
+        }
+    }
+
+    /**
+     * an update racing with the eviction is lost as if made before it
+     */
+    private void removeEvicted(List<CachedEntry> evicted) {
+        for (CachedEntry victim : evicted) {
+            while (true) {
+                Holder holder = victim.holder;
+                if (holder.state < 0) {
+                    // removed meanwhile, and dropped from the map by the removal
+                    break;
+                }
+                if (victim.compareAndSet(holder, REMOVED)) {
+                    unmap(victim);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * should be called with the policy lock held
+     */
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            CachedEntry cachedEntry = readBuffer.getAndSet(i, null);
+            if (cachedEntry != null) {
+                onAccess(cachedEntry);
+            }
+        }
+    }
+
+    private void onAccess(CachedEntry cachedEntry) {
+        switch (cachedEntry.queue) {
+            case WINDOW:
+                window.remove(cachedEntry);
+                window.addLast(cachedEntry, WINDOW);
+                break;
+            case PROBATION:
+                probation.remove(cachedEntry);
+                protectedSegment.addLast(cachedEntry, PROTECTED);
+                long protectedMax = (maximum - windowMax()) * 4 / 5;
+                while (protectedSegment.weight > protectedMax) {
+                    CachedEntry demoted = protectedSegment.head;
+                    protectedSegment.remove(demoted);
+                    probation.addLast(demoted, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                protectedSegment.remove(cachedEntry);
+                protectedSegment.addLast(cachedEntry, PROTECTED);
+                break;
+            default:
+                // removed already
+                return;
+        }
+        sketch.increment(hash(cachedEntry.key));
+    }
+
+    /**
+     * should be called with the policy lock held
+     *
+     * @return the entries to remove from the map
+     */
+    private List<CachedEntry> evict() {
+        // entries leaving the window become candidates at the most recent end of probation
+        int candidates = 0;
+        while (window.weight > windowMax()) {
+            CachedEntry candidate = window.head;
+            window.remove(candidate);
+            probation.addLast(candidate, PROBATION);
+            candidates++;
+        }
+
+        List<CachedEntry> evicted = new ArrayList<>();
+        while (window.weight + probation.weight + protectedSegment.weight > maximum) {
+            CachedEntry victim = probation.head != null ? probation.head :
+                    protectedSegment.head != null ? protectedSegment.head : window.head;
+            if (victim == null) {
+                break;
+            }
+            // without new candidates, such as when main went over while the window was filling,
+            // the least recent entry of the window competes instead
+            CachedEntry candidate = candidates > 0 ? probation.tail : window.head;
+
+            CachedEntry loser;
+            if (candidate == null || candidate == victim) {
+                loser = victim;
+            } else if (sketch.frequency(hash(candidate.key)) > sketch.frequency(hash(victim.key))) {
+                loser = victim;
+            } else {
+                loser = candidate;
+            }
+
+            if (loser == candidate && candidates > 0) {
+                candidates--;
+            }
+            unlink(loser);
+            evicted.add(loser);
+        }
+        return evicted;
+    }
+
+    private long windowMax() {
+        return Math.max(1, maximum / 100);
+    }
+
+    private void unlink(CachedEntry cachedEntry) {
+        AccessOrder queue = queueOf(cachedEntry);
+        if (queue != null) {
+            queue.remove(cachedEntry);
+            cachedEntry.queue = NONE;
+        }
+    }
+
+    private AccessOrder queueOf(CachedEntry cachedEntry) {
+        switch (cachedEntry.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            case PROTECTED:
+                return protectedSegment;
+            default:
+                return null;
+        }
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * doubly linked list through the entries, head is the least recently used
+     */
+    private static class AccessOrder {
+        private CachedEntry head;
+        private CachedEntry tail;
+        private long weight;
+
+        private void addLast(CachedEntry cachedEntry, int queue) {
+            cachedEntry.queue = queue;
+            cachedEntry.previous = tail;
+            cachedEntry.next = null;
+            if (tail == null) {
+                head = cachedEntry;
+            } else {
+                tail.next = cachedEntry;
+            }
+            tail = cachedEntry;
+            weight += cachedEntry.policyWeight;
+        }
+
+        private void remove(CachedEntry cachedEntry) {
+            if (cachedEntry.previous == null) {
+                head = cachedEntry.next;
+            } else {
+                cachedEntry.previous.next = cachedEntry.next;
+            }
+            if (cachedEntry.next == null) {
+                tail = cachedEntry.previous;
+            } else {
+                cachedEntry.next.previous = cachedEntry.previous;
+            }
+            cachedEntry.previous = null;
+            cachedEntry.next = null;
+            weight -= cachedEntry.policyWeight;
+        }
+
+        private void reweigh(CachedEntry cachedEntry, int policyWeight) {
+            weight += policyWeight - cachedEntry.policyWeight;
+            cachedEntry.policyWeight = policyWeight;
         }
     }
 }
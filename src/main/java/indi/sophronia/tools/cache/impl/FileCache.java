@@ -1,329 +1,2562 @@
 package indi.sophronia.tools.cache.impl;
 
 import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
+import indi.sophronia.tools.util.GlobPattern;
 import indi.sophronia.tools.util.Rethrow;
 import indi.sophronia.tools.util.StringHelper;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FileCache implements CacheFacade {
     public FileCache(String fileName) {
+        this(fileName, Executors.newSingleThreadScheduledExecutor(), Executors.newSingleThreadScheduledExecutor(), true);
+    }
+
+    /**
+     * @param compactor runs the compactions and expiry sweeps, may be shared by several instances
+     * @param syncer runs the log syncs apart from the compactor, so that a long compaction does not delay them,
+     *               may be shared by several instances
+     */
+    FileCache(String fileName, ScheduledExecutorService compactor, ScheduledExecutorService syncer,
+              boolean ownExecutors) {
+        this.compactor = compactor;
+        this.syncer = syncer;
+        this.ownExecutors = ownExecutors;
         this.indexFileName = fileName + ".index.kvdb";
         this.dataFileName = fileName + ".data.kvdb";
+        this.compactIndexFileName = fileName + ".index.compact.kvdb";
+        this.compactDataFileName = fileName + ".data.compact.kvdb";
+        this.compactMarkerFileName = fileName + ".compact.kvdb";
+        this.keyFilterFileName = fileName + ".filter.kvdb";
+        this.mergeIndexFileName = fileName + ".index.merge.kvdb";
+        this.deltaIndexFileName = fileName + ".index.delta.kvdb";
+        this.writeAheadLog = new WriteAheadLog(Path.of(fileName + ".wal.kvdb"));
+        this.lockFileName = fileName + ".lock.kvdb";
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * serializes writers and the compactor, so that the compactor can copy the files
+     * under the read lock while lookups continue
+     */
+    private final ReentrantLock writeMutex = new ReentrantLock();
+
+    private final ScheduledExecutorService compactor;
+
+    private final ScheduledExecutorService syncer;
+
+    private final boolean ownExecutors;
+
+    private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>(2);
+
+    private volatile Future<?> keyFilterRebuild;
+
+    /**
+     * writes waiting for the next group commit, drained by whichever writer holds the write mutex
+     */
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private final String indexFileName;
+
+    private final String dataFileName;
+
+    private final String compactIndexFileName;
+
+    private final String compactDataFileName;
+
+    private final String compactMarkerFileName;
+
+    private final String keyFilterFileName;
+
+    private final String mergeIndexFileName;
+
+    private final String deltaIndexFileName;
+
+    /**
+     * appended by writers under the write mutex before the files are touched
+     */
+    private final WriteAheadLog writeAheadLog;
+
+    /**
+     * logged writes not applied to the files yet, by key, looked up before the files.
+     * they are applied as one group once the log holding them is synced. modified under the write mutex,
+     * in shared mode under the lock file object, as it also holds the writes of the other processes
+     */
+    private final Map<String, PendingWrite> unappliedWrites = new ConcurrentHashMap<>();
+
+    private long syncMillis = 1000;
+
+    private final String lockFileName;
+
+    private boolean shared;
+
+    /**
+     * only present in shared mode
+     */
+    private ProcessLock processLock;
+
+    /**
+     * generation of the files reflected by what is kept in memory, -1 before init
+     */
+    private volatile long generation = -1;
+
+    /**
+     * in shared mode, the resets of the log, the position in it up to which the writes are applied to the files,
+     * and the one up to which they are read into the unapplied writes and the key filter, -1 before init.
+     * guarded by the lock file object
+     */
+    private long walCheckpoints;
+
+    private long walApplied;
+
+    private long walPosition = -1;
+
+    private boolean memoryMapped;
+
+    private String keyFilterType = KeyFilter.BLOOM;
+
+    private int keyFilterCapacity = 1 << 20;
+
+    /**
+     * superset of the persisted keys, written next to the index at checkpoints and compactions, and rebuilt by compactions
+     */
+    private volatile KeyFilter keyFilter;
+
+    private double compactionThreshold = 0.5;
+
+    private boolean compressValues;
+
+    /**
+     * format of the values in the current data file, replaced by compactions under the write lock
+     */
+    private ValueCodec codec = ValueCodec.RAW;
+
+    /**
+     * bytes in the data file no longer referenced by the index, -1 before the first scan.
+     * guarded by the write mutex
+     */
+    private long deadBytes = -1;
+
+    /**
+     * row where the next expiry sweep starts, guarded by the write mutex
+     */
+    private int sweepCursor;
+
+    /**
+     * read-only views on the index and data files, only present in memory mapped mode.
+     * both are replaced under the write lock whenever the files grow
+     */
+    private MappedByteBuffer indexMap;
+
+    private MappedByteBuffer dataMap;
+
+    /**
+     * rows of the delta index by hash, the last one appended for each hash.
+     * modified under the write lock, in shared mode reloaded whenever the files change
+     */
+    private final ConcurrentNavigableMap<byte[], long[]> deltaRows =
+            new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+
+    /**
+     * id of the index the rows in memory belong to, and number of rows read from or appended to the delta index.
+     * the delta index file is only valid if it was written for that index, otherwise it is started over
+     * before the next row is appended
+     */
+    private long indexId;
+
+    private int deltaRowCount;
+
+    private boolean deltaIndexValid;
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @param compactionThreshold ratio of dead bytes in the data file that triggers a compaction
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @param syncMillis interval between the fsyncs of the write-ahead log, 0 to fsync at every write.
+     *                   writes of the last interval may be lost on power failure, but not on a killed process.
+     *                   the synced writes are then applied to the cache files together
+     */
+    public void setSyncMillis(long syncMillis) {
+        this.syncMillis = syncMillis;
+    }
+
+    /**
+     * @param shared whether other processes may open the same files at the same time.
+     *               they are coordinated by locks on a lock file, at most one instance per process.
+     *               the other processes follow the shared log for the writes not applied yet,
+     *               and whichever process syncs first applies them to the files as one group
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @param compressValues whether values are deflated with a dictionary sampled from the stored values.
+     *                       existing files are converted at init
+     */
+    public void setCompressValues(boolean compressValues) {
+        this.compressValues = compressValues;
+    }
+
+    /**
+     * @param keyFilterType "bloom" for a fixed size off-heap bloom filter,
+     *                      or "hash" for an exact set of 64-bit key hashes
+     */
+    public void setKeyFilterType(String keyFilterType) {
+        this.keyFilterType = keyFilterType;
+    }
+
+    /**
+     * @param keyFilterCapacity number of keys the bloom filter is sized for
+     */
+    public void setKeyFilterCapacity(int keyFilterCapacity) {
+        this.keyFilterCapacity = keyFilterCapacity;
+    }
+
+    @Override
+    public Set<String> keys(String pattern) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        if (glob.isLiteral()) {
+            Set<String> set = new HashSet<>(1);
+            if (load(pattern) != null) {
+                set.add(pattern);
+            }
+            return set;
+        }
+        flushLoggedWrites();
+        return readKeys(glob);
+    }
+
+    /**
+     * bits of the scan cursor, those above are left to caches made of several files
+     */
+    static final int SCAN_CURSOR_BITS = Integer.SIZE;
+
+    /**
+     * pages follow the order of the index, the rows of the delta index merged in.
+     * the cursor is the leading bits of the hash the next page starts at,
+     * so that it stays valid while rows are inserted or compacted away.
+     * rows sharing the leading bits of the last one go along, the next page could not start after them otherwise
+     */
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        flushLoggedWrites();
+        lockRead();
+        try {
+            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+                 FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                int totalCount = countOfKeys(indexChannel);
+
+                byte[] start = ByteBuffer.allocate(DataSize.indexHashSize)
+                        .putLong(cursor << (Long.SIZE - SCAN_CURSOR_BITS)).array();
+                int from = indexOf(indexChannel, totalCount, start, new long[2]);
+                if (from < 0) {
+                    from = -(from + 1);
+                }
+                int limit = Math.max(count, 1);
+
+                // the rows of both indexes are taken in hash order up to the leading bits of the last one
+                int mainCount = Math.min(limit, totalCount - from);
+                ByteBuffer rows = ByteBuffer.allocate((int) (mainCount * DataSize.indexRowLength));
+                readFully(indexChannel, rows, DataSize.indexFileHeaderSize + from * DataSize.indexRowLength);
+                List<Map.Entry<byte[], long[]>> deltaEntries = new ArrayList<>();
+                for (Map.Entry<byte[], long[]> entry : deltaRows.tailMap(start, true).entrySet()) {
+                    if (deltaEntries.size() == limit) {
+                        break;
+                    }
+                    deltaEntries.add(entry);
+                }
+                long[] prefixes = new long[mainCount + deltaEntries.size()];
+                if (prefixes.length == 0) {
+                    return new ScanPage(0, new ArrayList<>());
+                }
+                for (int i = 0; i < mainCount; i++) {
+                    prefixes[i] = rows.getLong((int) (i * DataSize.indexRowLength)) >>> (Long.SIZE - SCAN_CURSOR_BITS);
+                }
+                for (int i = 0; i < deltaEntries.size(); i++) {
+                    prefixes[mainCount + i] = scanCursorOf(deltaEntries.get(i).getKey());
+                }
+                Arrays.sort(prefixes);
+                long last = prefixes[Math.min(limit, prefixes.length) - 1];
+
+                long timestamp = System.currentTimeMillis();
+                List<Long> pageCursors = new ArrayList<>();
+                int to = from;
+                for (; to < totalCount; to++) {
+                    long dataCursor;
+                    long expireAt;
+                    if (to - from < mainCount) {
+                        int offset = (int) ((to - from) * DataSize.indexRowLength);
+                        if (rows.getLong(offset) >>> (Long.SIZE - SCAN_CURSOR_BITS) > last) {
+                            break;
+                        }
+                        dataCursor = rows.getLong(offset + DataSize.indexCursorOffset);
+                        expireAt = rows.getLong(offset + DataSize.indexExpireAtOffset);
+                    } else {
+                        // rows sharing the leading bits of the last one past the page
+                        ByteBuffer row = ByteBuffer.allocate((int) DataSize.indexRowLength);
+                        readFully(indexChannel, row, DataSize.indexFileHeaderSize + to * DataSize.indexRowLength);
+                        if (row.getLong(0) >>> (Long.SIZE - SCAN_CURSOR_BITS) > last) {
+                            break;
+                        }
+                        dataCursor = row.getLong(DataSize.indexCursorOffset);
+                        expireAt = row.getLong(DataSize.indexExpireAtOffset);
+                    }
+                    if (alive(dataCursor, expireAt, timestamp)) {
+                        pageCursors.add(dataCursor);
+                    }
+                }
+                long next = to == totalCount ? -1 : scanCursorOf(indexChannel, to);
+
+                for (Map.Entry<byte[], long[]> entry : deltaRows.tailMap(start, true).entrySet()) {
+                    long prefix = scanCursorOf(entry.getKey());
+                    if (prefix > last) {
+                        next = next < 0 ? prefix : Math.min(next, prefix);
+                        break;
+                    }
+                    long[] row = entry.getValue();
+                    if (alive(row[0], row[1], timestamp)) {
+                        pageCursors.add(row[0]);
+                    }
+                }
+
+                long[] cursors = new long[pageCursors.size()];
+                for (int i = 0; i < cursors.length; i++) {
+                    cursors[i] = pageCursors.get(i);
+                }
+                Arrays.sort(cursors);
+
+                GlobPattern glob = GlobPattern.compile(pattern);
+                List<String> keys = new ArrayList<>();
+                for (long dataCursor : cursors) {
+                    String key = new String(readKey(dataChannel, dataCursor), StandardCharsets.UTF_8);
+                    if (glob.matches(key)) {
+                        keys.add(key);
+                    }
+                }
+
+                // a next row whose leading bits are 0 cannot be told from the end, one in 2^32
+                return new ScanPage(Math.max(next, 0), keys);
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    private static long scanCursorOf(FileChannel indexChannel, int row) throws IOException {
+        ByteBuffer hash = ByteBuffer.allocate(Long.BYTES);
+        readFully(indexChannel, hash, DataSize.indexFileHeaderSize + row * DataSize.indexRowLength);
+        return hash.getLong(0) >>> (Long.SIZE - SCAN_CURSOR_BITS);
+    }
+
+    private static long scanCursorOf(byte[] hash) {
+        return ByteBuffer.wrap(hash).getLong() >>> (Long.SIZE - SCAN_CURSOR_BITS);
+    }
+
+    @Override
+    public <T> void save(String key, T value, long expireMillis) {
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        saveFileContent(List.of(new PendingWrite(key, value.toString(), expireAt)));
+    }
+
+    @Override
+    public <T> void savePersist(String key, T value) {
+        save(key, value, 0L);
+    }
+
+    @Override
+    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        List<PendingWrite> writes = new ArrayList<>(data.size());
+        data.forEach((key, value) -> writes.add(new PendingWrite(key, value.toString(), expireAt)));
+        saveFileContent(writes);
+    }
+
+    @Override
+    public <T> void saveBatchPersist(Map<String, T> data) {
+        saveBatch(data, 0L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T load(String key) {
+        followLoggedWrites();
+        PendingWrite unapplied = unappliedWrites.get(key);
+        if (unapplied != null) {
+            return unapplied.value != null && alive(0, unapplied.expireAt, System.currentTimeMillis()) ?
+                    (T) unapplied.value : null;
+        }
+
+        byte[] hash = StringHelper.digest(key);
+        if (mightContain(hash)) {
+            return (T) readFileContent(key, hash);
+        }
+        return null;
+    }
+
+    /**
+     * the index row is trusted without reading the key back from the data file
+     */
+    @Override
+    public long expireAt(String key) {
+        followLoggedWrites();
+        long timestamp = System.currentTimeMillis();
+        PendingWrite unapplied = unappliedWrites.get(key);
+        if (unapplied != null) {
+            return unapplied.value != null && alive(0, unapplied.expireAt, timestamp) ? unapplied.expireAt : -1;
+        }
+
+        byte[] hash = StringHelper.digest(key);
+        if (!mightContain(hash)) {
+            return -1;
+        }
+
+        lockRead();
+        try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            long[] dataCursor = new long[2];
+            if (!locate(fileChannel, hash, dataCursor) || !alive(dataCursor[0], dataCursor[1], timestamp)) {
+                return -1;
+            }
+            return dataCursor[1];
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> Map<String, T> loadBatch(Collection<String> keys) {
+        followLoggedWrites();
+        Map<String, String> unapplied = new HashMap<>();
+        Map<String, byte[]> candidates = new HashMap<>(keys.size());
+        long timestamp = System.currentTimeMillis();
+        for (String key : keys) {
+            PendingWrite write = unappliedWrites.get(key);
+            if (write != null) {
+                if (write.value != null && alive(0, write.expireAt, timestamp)) {
+                    unapplied.put(key, write.value);
+                }
+                continue;
+            }
+
+            byte[] hash = StringHelper.digest(key);
+            if (mightContain(hash)) {
+                candidates.put(key, hash);
+            }
+        }
+
+        Map<String, String> results = readFileContents(candidates);
+        results.putAll(unapplied);
+        return (Map<String, T>) results;
+    }
+
+    @Override
+    public void invalidate(String key) {
+        invalidateFileContent(List.of(key));
+    }
+
+    @Override
+    public void invalidateBatch(Collection<String> keys) {
+        invalidateFileContent(keys);
+    }
+
+
+    /**
+     * File IO
+     */
+    private static class DataSize {
+        // index header -> magic int, version int, flags int, count int, dictionary_length int, reserved int, id long.
+        // the id is drawn anew whenever the index is rewritten, older files have 0
+        static final int indexMagic = 0x4B564442;
+        static final int indexVersion = 3;
+        static final int indexVersionOffset = Integer.BYTES;
+        static final int indexFlagsOffset = 2 * Integer.BYTES;
+        static final int indexCountOffset = 3 * Integer.BYTES;
+        static final int indexDictionaryOffset = 4 * Integer.BYTES;
+        static final int indexIdOffset = 3 * Long.BYTES;
+        static final int indexCountSize = Integer.BYTES;
+        static final int indexFileHeaderSize = 32;
+
+        // delta index -> index_id long, reserved long, then rows as in the index, appended in no order.
+        // it holds the keys the index has no row for, the last row appended for a hash wins
+        static final int deltaHeaderSize = 2 * Long.BYTES;
+
+        // the delta index is merged into the index once it holds this many rows
+        static final int maxDeltaRows = 1 << 16;
+
+
+        // index row -> key_hash byte(indexHashSize), offset long, expire_at long. rows are sorted by the unsigned hash
+        static final int indexHashSize = 16;
+        static final int indexCursorSize = Long.BYTES;
+        static final int indexCursorOffset = indexHashSize;
+        static final int indexExpireAtSize = Long.BYTES;
+        static final int indexExpireAtOffset = indexCursorOffset + indexCursorSize;
+        static final long indexRowLength = indexHashSize + indexCursorSize + indexExpireAtSize;
+
+        // version 1 and 2 rows -> key_length int, key byte(legacyMaxKeyLength), offset long, expire_at long,
+        // sorted by key. version 1 files have the count as the whole header and no expire_at in the rows
+        static final int legacyKeyLength = Integer.BYTES;
+        static final int legacyMaxKeyLength = 256;
+        static final int legacyCursorOffset = legacyKeyLength + legacyMaxKeyLength;
+        static final int version1IndexFileHeaderSize = Integer.BYTES;
+        static final long version1IndexRowLength = legacyCursorOffset + Long.BYTES;
+        static final long version2IndexRowLength = legacyCursorOffset + 2 * Long.BYTES;
+
+        // offset of an invalidated row, the row is dropped at the next compaction
+        static final long tombstone = -1;
+
+        // data row -> key_length int, key text(variable), value_length int, value text(variable).
+        // the value part of compressed files is described in ValueCodec
+        static final int dataKeyLength = Integer.BYTES;
+        static final int flagCompressed = 1;
+
+        // values sampled for the compression dictionary at each compaction
+        static final int dictionarySamples = 512;
+        static final int dictionarySampleLength = 128;
+
+        // skip compactions that would reclaim less than this
+        static final long minCompactionBytes = 1 << 20;
+
+        // rows checked by each expiry sweep
+        static final int sweepBatchRows = 1024;
+
+        // rows read or moved at once while a group of writes is merged into the index
+        static final int mergeBatchRows = 1024;
+
+        // values are appended through a buffer of this size
+        static final int appendBufferSize = 1 << 20;
+
+        // the data file is mapped again once this much is appended past the mapping, which is read through the file
+        static final long unmappedDataBytes = 16 << 20;
+
+        // the cache files are synced and the write-ahead log truncated once it grows over this
+        static final long walCheckpointBytes = 4 << 20;
+
+        // interval between the applications of the logged writes when every write is synced at once
+        static final long applyMillis = 1000;
+
+        // logged writes kept in memory at most, more are applied by the writer
+        static final int maxUnappliedWrites = 1 << 16;
+    }
+
+    @Override
+    public void init() {
+        try {
+            ensureFile(this.indexFileName);
+            ensureFile(this.dataFileName);
+            if (shared) {
+                processLock = new ProcessLock(Path.of(lockFileName));
+                processLock.open();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        }
+
+        lockWriter();
+        lockWrite();
+        try {
+            recoverCompaction();
+            Files.deleteIfExists(Path.of(mergeIndexFileName));
+            upgradeIndexFile();
+            loadDeltaIndex();
+            codec = readCodec();
+            if (codec.compressed() != compressValues || compressValues && codec.dictionary().length == 0 &&
+                    Files.size(Path.of(dataFileName)) >= DataSize.minCompactionBytes) {
+                compact();
+            }
+            if (keyFilter == null) {
+                keyFilter = loadKeyFilter();
+            }
+            if (keyFilter == null) {
+                scheduleKeyFilterRebuild();
+            }
+            if (memoryMapped) {
+                remap();
+            }
+            replayWriteAheadLog();
+            if (processLock != null) {
+                synchronized (processLock) {
+                    // the replay has applied whatever the log held, even what a process that died before it
+                    // could publish appended
+                    long end = writeAheadLog.size();
+                    processLock.writeWalEnd(end);
+                    processLock.writeWalApplied(end);
+                    followFrom(processLock.checkpoints(), end, end);
+                }
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockWrite();
+            unlockWriter();
+        }
+
+        long interval = syncMillis > 0 ? syncMillis : DataSize.applyMillis;
+        scheduledTasks.add(syncer.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        syncWriteAheadLog();
+                    } catch (Exception e) {
+                        System.err.println("fail to sync write-ahead log: " + e.getMessage());
+                    }
+                },
+                interval, interval, TimeUnit.MILLISECONDS
+        ));
+
+        scheduledTasks.add(compactor.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        compactIfNeeded();
+                    } catch (Exception e) {
+                        System.err.println("fail to compact cache file: " + e.getMessage());
+                    }
+                },
+                1, 1, TimeUnit.MINUTES
+        ));
+        scheduledTasks.add(compactor.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        sweepExpired();
+                    } catch (Exception e) {
+                        System.err.println("fail to sweep cache file: " + e.getMessage());
+                    }
+                },
+                5, 5, TimeUnit.SECONDS
+        ));
     }
 
-    private final Map<String, Object> md5Digests = new ConcurrentHashMap<>();
+    private static void ensureFile(String filePath) throws IOException {
+        Path path = Path.of(filePath);
+
+        StringBuilder buffer = new StringBuilder(filePath.length());
+        // the names iterated leave the root out
+        if (path.getRoot() != null) {
+            buffer.append(path.getRoot());
+        }
+        Iterator<Path> iterator = path.normalize().iterator();
+        while (iterator.hasNext()) {
+            buffer.append(iterator.next().toString());
+            Path current = Path.of(buffer.toString());
+
+            if (!Files.exists(current)) {
+                try {
+                    if (iterator.hasNext()) {
+                        Files.createDirectory(current);
+                    } else {
+                        Files.createFile(current);
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    // created by another process sharing the files
+                }
+            }
+
+            if (iterator.hasNext()) {
+                buffer.append("/");
+            }
+        }
+    }
+
+    /**
+     * writes the header of a new index file, or rewrites a pair of an older version into the current format
+     */
+    private void upgradeIndexFile() throws IOException {
+        int version;
+        try (FileChannel fileChannel = FileChannel.open(
+                Path.of(indexFileName),
+                StandardOpenOption.READ, StandardOpenOption.WRITE
+        )) {
+            if (fileChannel.size() == 0) {
+                writeIndexHeader(fileChannel, 0, compressValues ? ValueCodec.deflate(new byte[0]) : ValueCodec.RAW);
+                return;
+            }
+
+            byte[] container = new byte[Integer.BYTES];
+            fileChannel.read(ByteBuffer.wrap(container), 0);
+            if (bytesToInt(container) != DataSize.indexMagic) {
+                version = 1;
+            } else {
+                fileChannel.read(ByteBuffer.wrap(container), DataSize.indexVersionOffset);
+                version = bytesToInt(container);
+            }
+        }
+
+        if (version == 1 || version == 2) {
+            convertLegacyFiles(version);
+        } else if (version != DataSize.indexVersion) {
+            throw new IOException("unsupported cache file version " + version);
+        }
+    }
+
+    private ValueCodec readCodec() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DataSize.indexFileHeaderSize);
+        try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            fileChannel.read(header, 0);
+        }
+        if ((header.getInt(DataSize.indexFlagsOffset) & DataSize.flagCompressed) == 0) {
+            return ValueCodec.RAW;
+        }
+
+        byte[] dictionary = new byte[header.getInt(DataSize.indexDictionaryOffset)];
+        if (dictionary.length > 0) {
+            try (FileChannel fileChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                readFully(fileChannel, ByteBuffer.wrap(dictionary), Integer.BYTES);
+            }
+        }
+        return ValueCodec.deflate(dictionary);
+    }
+
+    /**
+     * reads the filter persisted by the last checkpoint, a single read sized by the filter capacity.
+     * the log is only reset once the filter is written, so the writes replayed from it add whatever came later
+     *
+     * @return null if it belongs to replaced files
+     */
+    private KeyFilter loadKeyFilter() throws IOException {
+        return KeyFilter.read(Path.of(keyFilterFileName), keyFilterType, Files.size(Path.of(dataFileName)));
+    }
+
+    /**
+     * should be called with the write mutex held, before the log is reset.
+     * a filter not rebuilt yet is not written, and the file left from before is dropped as it misses the logged keys
+     */
+    private void writeKeyFilter() throws IOException {
+        if (keyFilter == KeyFilter.PASS_THROUGH) {
+            Files.deleteIfExists(Path.of(keyFilterFileName));
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            keyFilter.write(Path.of(keyFilterFileName), countOfKeys(fileChannel) + deltaRows.size(),
+                    Files.size(Path.of(dataFileName)));
+        }
+    }
+
+    /**
+     * lookups fall through to the index until the filter is rebuilt
+     */
+    private void scheduleKeyFilterRebuild() {
+        keyFilter = KeyFilter.PASS_THROUGH;
+        try {
+            keyFilterRebuild = compactor.submit(() -> {
+                try {
+                    rebuildKeyFilter();
+                } catch (Exception e) {
+                    System.err.println("fail to rebuild key filter: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * runs on the compactor thread, rebuilds the filter from the hashes in the index
+     */
+    private void rebuildKeyFilter() throws IOException {
+        lockWriter();
+        try {
+            if (keyFilter != KeyFilter.PASS_THROUGH) {
+                // a compaction has built one meanwhile
+                return;
+            }
+            KeyFilter filter = buildKeyFilter();
+            if (processLock == null) {
+                addUnappliedWrites(filter);
+                keyFilter = filter;
+                return;
+            }
+            synchronized (processLock) {
+                addUnappliedWrites(filter);
+                keyFilter = filter;
+            }
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * the logged writes not applied yet are missing from the index
+     */
+    private void addUnappliedWrites(KeyFilter filter) {
+        for (PendingWrite write : unappliedWrites.values()) {
+            if (write.value != null) {
+                filter.add(StringHelper.digest(write.key));
+            }
+        }
+    }
+
+    /**
+     * should be called with the write mutex held
+     */
+    private KeyFilter buildKeyFilter() throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            int count = countOfKeys(fileChannel);
+            KeyFilter filter = KeyFilter.create(keyFilterType, keyFilterCapacity, count);
+            ByteBuffer rows = ByteBuffer.allocate((int) (DataSize.mergeBatchRows * DataSize.indexRowLength));
+            byte[] hash = new byte[DataSize.indexHashSize];
+            for (int start = 0; start < count; start += DataSize.mergeBatchRows) {
+                int end = Math.min(count, start + DataSize.mergeBatchRows);
+                rows.clear().limit((int) ((end - start) * DataSize.indexRowLength));
+                readFully(fileChannel, rows, DataSize.indexFileHeaderSize + start * DataSize.indexRowLength);
+
+                for (int i = 0; i < end - start; i++) {
+                    int offset = (int) (i * DataSize.indexRowLength);
+                    if (rows.getLong(offset + DataSize.indexCursorOffset) != DataSize.tombstone) {
+                        rows.get(offset, hash);
+                        filter.add(hash);
+                    }
+                }
+            }
+            deltaRows.forEach((deltaHash, row) -> {
+                if (row[0] != DataSize.tombstone) {
+                    filter.add(deltaHash);
+                }
+            });
+            return filter;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduledTasks.forEach(task -> task.cancel(false));
+        if (keyFilterRebuild != null) {
+            keyFilterRebuild.cancel(false);
+        }
+        if (ownExecutors) {
+            compactor.shutdown();
+            syncer.shutdown();
+        }
+
+        lockWriter();
+        try {
+            checkpoint();
+            writeAheadLog.close();
+        } catch (IOException e) {
+            System.err.println("fail to checkpoint cache file: " + e.getMessage());
+        } finally {
+            unlockWriter();
+        }
+
+        if (processLock != null) {
+            try {
+                processLock.close();
+            } catch (IOException e) {
+                System.err.println("fail to close lock file: " + e.getMessage());
+            }
+        }
+        CacheFacade.super.destroy();
+    }
+
+    /**
+     * takes the write mutex, and in shared mode the writer region of the lock file
+     */
+    private void lockWriter() {
+        writeMutex.lock();
+        if (processLock == null) {
+            return;
+        }
+
+        try {
+            processLock.lockWriter();
+            refreshIfChanged();
+            if (writeMutex.getHoldCount() == 1) {
+                // counted by whichever process wrote last
+                deadBytes = processLock.deadBytes();
+            }
+        } catch (IOException e) {
+            unlockWriter();
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    private void unlockWriter() {
+        try {
+            if (processLock != null) {
+                processLock.writeDeadBytes(deadBytes);
+                processLock.unlockWriter();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * takes the read lock, and in shared mode the reader region of the lock file
+     */
+    private void lockRead() {
+        lock.readLock().lock();
+        if (processLock == null) {
+            return;
+        }
+
+        try {
+            processLock.lockShared();
+            refreshIfChanged();
+        } catch (IOException e) {
+            unlockRead();
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    private void unlockRead() {
+        try {
+            if (processLock != null) {
+                processLock.unlockReader();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * takes the write lock, and in shared mode the reader region of the lock file exclusively.
+     * should be called with the write mutex held
+     */
+    private void lockWrite() {
+        lock.writeLock().lock();
+        if (processLock == null) {
+            return;
+        }
+
+        try {
+            processLock.lockExclusive();
+        } catch (IOException e) {
+            unlockWrite();
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    /**
+     * in shared mode the generation is increased, so that the other processes reload
+     */
+    private void unlockWrite() {
+        try {
+            if (processLock != null) {
+                processLock.writeGeneration(++generation);
+                processLock.unlockReader();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * reloads what is kept in memory about the files once another process has modified them,
+     * and takes the writes they have logged since.
+     * should be called with a region of the lock file held
+     */
+    private void refreshIfChanged() throws IOException {
+        long current = processLock.generation();
+        if (current != generation) {
+            synchronized (processLock) {
+                if (generation < 0) {
+                    // init loads everything afterwards
+                    generation = current;
+                    return;
+                }
+                if (current != generation) {
+                    codec = readCodec();
+                    boolean replaced = loadDeltaIndex();
+                    if (replaced && memoryMapped) {
+                        remap();
+                    } else if (memoryMapped) {
+                        remapGrownData();
+                    }
+                    generation = current;
+                }
+            }
+        }
+        followWriteAheadLog();
+    }
+
+    /**
+     * in shared mode, takes the writes logged by the other processes since the last call
+     */
+    private void followLoggedWrites() {
+        if (processLock == null) {
+            return;
+        }
+
+        try {
+            followWriteAheadLog();
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    /**
+     * costs three mapped reads while no process has logged or applied anything
+     */
+    private void followWriteAheadLog() throws IOException {
+        if (processLock.checkpoints() == walCheckpoints && processLock.walApplied() == walApplied &&
+                processLock.walEnd() == walPosition) {
+            return;
+        }
+
+        synchronized (processLock) {
+            readWriteAheadLog();
+        }
+    }
+
+    /**
+     * reads the writes logged by the other processes into the unapplied ones, and adds their keys to the filter.
+     * once one of them has applied the log, the unapplied writes are read again from the applied position,
+     * and once one of them has reset it, the filter it persisted before takes the place of this one
+     * and the log is read from its start. the keys applied before they were read go to the filter all the same.
+     * the log is read up to its intact end, so a writer also takes the writes of a process that died
+     * before it could publish them. should be called with the lock file object held
+     */
+    private void readWriteAheadLog() throws IOException {
+        if (walPosition < 0) {
+            // init follows once it is done with the log
+            return;
+        }
+
+        while (true) {
+            long checkpoints = processLock.checkpoints();
+            long applied = processLock.walApplied();
+            boolean reread = checkpoints != walCheckpoints || applied != walApplied;
+            KeyFilter filter = keyFilter;
+            if (checkpoints != walCheckpoints && filter != KeyFilter.PASS_THROUGH) {
+                filter = loadKeyFilter();
+                if (filter == null) {
+                    scheduleKeyFilterRebuild();
+                    filter = KeyFilter.PASS_THROUGH;
+                }
+            }
+
+            KeyFilter target = filter;
+            Map<String, PendingWrite> writes = new HashMap<>();
+            long from = checkpoints != walCheckpoints ? 0 : Math.min(walPosition, applied);
+            long position = writeAheadLog.read(from, entry -> {
+                if (entry.type == WriteAheadLog.PUT) {
+                    target.add(StringHelper.digest(entry.key));
+                }
+                if (entry.end > applied) {
+                    writes.put(entry.key, new PendingWrite(entry.key, entry.value, entry.expireAt));
+                }
+            });
+            // the log is reset and applied before it is marked, what was read belongs to the last mark otherwise
+            if (processLock.checkpoints() != checkpoints || processLock.walApplied() != applied) {
+                continue;
+            }
+
+            // the applied writes are only dropped once the others are in place, so that no read misses them
+            unappliedWrites.putAll(writes);
+            if (reread) {
+                unappliedWrites.keySet().retainAll(writes.keySet());
+            }
+            keyFilter = filter;
+            followFrom(checkpoints, applied, position);
+            return;
+        }
+    }
+
+    private void followFrom(long checkpoints, long applied, long position) {
+        walCheckpoints = checkpoints;
+        walApplied = applied;
+        walPosition = position;
+    }
+
+    /**
+     * should be called with the write mutex held, in shared mode the other processes learn about the reset
+     * once the log is empty, and read it again from its start
+     */
+    private void resetWriteAheadLog() throws IOException {
+        writeAheadLog.reset();
+        if (processLock != null) {
+            synchronized (processLock) {
+                long checkpoints = processLock.checkpoints() + 1;
+                processLock.writeWalEnd(0);
+                processLock.writeWalApplied(0);
+                processLock.writeCheckpoints(checkpoints);
+                followFrom(checkpoints, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * in shared mode the filter may miss the keys written by other processes since the last refresh
+     */
+    private boolean mightContain(byte[] hash) {
+        return keyFilter.mightContain(hash) ||
+                processLock != null && processLock.generation() != generation;
+    }
+
+    /**
+     * applies the writes logged since the last checkpoint, in their original order
+     */
+    private void replayWriteAheadLog() throws IOException {
+        List<WriteAheadLog.Entry> entries = writeAheadLog.open();
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        lockWriter();
+        try {
+            TreeMap<byte[], PendingWrite> group = new TreeMap<>(Arrays::compareUnsigned);
+            for (WriteAheadLog.Entry entry : entries) {
+                if (entry.type == WriteAheadLog.PUT) {
+                    group.put(StringHelper.digest(entry.key),
+                            new PendingWrite(entry.key, entry.value, entry.expireAt));
+                    continue;
+                }
+
+                applyGroup(group);
+                group.clear();
+                applyInvalidation(List.of(entry.key));
+            }
+            applyGroup(group);
+
+            checkpoint();
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * runs on the sync thread, syncs the log and applies the writes it holds.
+     * in shared mode that includes the writes of the other processes
+     */
+    private void syncWriteAheadLog() throws IOException {
+        if (!writeAheadLog.isOpen()) {
+            return;
+        }
+
+        writeAheadLog.sync();
+        followLoggedWrites();
+        if (unappliedWrites.isEmpty() && writeAheadLog.size() < DataSize.walCheckpointBytes) {
+            return;
+        }
+
+        lockWriter();
+        try {
+            if (writeAheadLog.size() >= DataSize.walCheckpointBytes) {
+                checkpoint();
+            } else {
+                applyLoggedWrites();
+            }
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    private void flushLoggedWrites() {
+        followLoggedWrites();
+        if (unappliedWrites.isEmpty()) {
+            return;
+        }
+
+        lockWriter();
+        try {
+            applyLoggedWrites();
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * syncs the log, then applies the writes kept in memory to the files as one group.
+     * a file is never ahead of the log, so a power failure cannot leave the files
+     * with changes the log cannot replay. in shared mode the other processes learn that
+     * the log is applied up to its end, and drop what they keep of it.
+     * should be called with the write mutex held
+     */
+    private void applyLoggedWrites() throws IOException {
+        if (unappliedWrites.isEmpty()) {
+            return;
+        }
+
+        if (processLock != null) {
+            // the other processes only sync what they have appended on their own interval
+            writeAheadLog.force();
+        } else {
+            writeAheadLog.sync();
+        }
+
+        TreeMap<byte[], PendingWrite> group = new TreeMap<>(Arrays::compareUnsigned);
+        List<String> invalidations = new ArrayList<>();
+        for (PendingWrite write : unappliedWrites.values()) {
+            if (write.value == null) {
+                invalidations.add(write.key);
+            } else {
+                group.put(StringHelper.digest(write.key), write);
+            }
+        }
+
+        lockWrite();
+        try {
+            applyGroup(group);
+            applyInvalidation(invalidations);
+        } finally {
+            unlockWrite();
+        }
+        if (processLock == null) {
+            unappliedWrites.clear();
+            return;
+        }
+        synchronized (processLock) {
+            unappliedWrites.clear();
+            walApplied = walPosition;
+            processLock.writeWalApplied(walPosition);
+        }
+    }
+
+    /**
+     * applies the logged writes, syncs the cache files and persists the key filter,
+     * after which the logged writes are no longer needed.
+     * should be called with the write mutex held
+     */
+    private void checkpoint() throws IOException {
+        applyLoggedWrites();
+        try (FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.WRITE);
+             FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.WRITE);
+             FileChannel deltaChannel = FileChannel.open(Path.of(deltaIndexFileName), StandardOpenOption.WRITE)) {
+            dataChannel.force(true);
+            indexChannel.force(true);
+            deltaChannel.force(true);
+        }
+        writeKeyFilter();
+        resetWriteAheadLog();
+    }
+
+    /**
+     * should be called at init or with the write lock held
+     */
+    private void remap() throws IOException {
+        indexMap = map(indexFileName);
+        dataMap = map(dataFileName);
+    }
+
+    /**
+     * maps the data file again once enough is appended past the mapping, the records past it are read
+     * through the file meanwhile. the index only changes in place, except when it is replaced.
+     * should be called with the write lock held
+     */
+    private void remapGrownData() throws IOException {
+        MappedByteBuffer data = dataMap;
+        long size = Files.size(Path.of(dataFileName));
+        if (size <= Integer.MAX_VALUE && (data == null || size - data.capacity() >= DataSize.unmappedDataBytes)) {
+            dataMap = map(dataFileName);
+        }
+    }
+
+    /**
+     * @return null if the file is too large to fit in a single mapping
+     */
+    private static MappedByteBuffer map(String filePath) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * the keys are kept beside the values, they are read in the order of their offsets.
+     * the index is ordered by hash, so every live key is tested against the pattern
+     */
+    private Set<String> readKeys(GlobPattern glob) {
+        lockRead();
+        try {
+            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+                 FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                long[] cursors = liveCursors(indexChannel);
+                Arrays.sort(cursors);
+
+                Set<String> keys = new HashSet<>();
+                for (long cursor : cursors) {
+                    String key = new String(readKey(dataChannel, cursor), StandardCharsets.UTF_8);
+                    if (glob.matches(key)) {
+                        keys.add(key);
+                    }
+                }
+                return keys;
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    interface EntryVisitor {
+        /**
+         * @param expireAt expiration time in millis, 0 if the entry never expires
+         */
+        void visit(String key, String value, long expireAt);
+    }
+
+    /**
+     * visits every persisted entry in the order of the data file, used to migrate the files into other storage engines
+     */
+    void forEach(EntryVisitor visitor) {
+        flushLoggedWrites();
+        lockRead();
+        try {
+            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+                 FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                long[] expireAts = new long[countOfKeys(indexChannel) + deltaRows.size()];
+                long[] cursors = liveCursors(indexChannel, expireAts);
+                Integer[] order = new Integer[cursors.length];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, Comparator.comparingLong(i -> cursors[i]));
+
+                for (int i : order) {
+                    byte[] key = readKey(dataChannel, cursors[i]);
+                    visitor.visit(
+                            new String(key, StandardCharsets.UTF_8),
+                            codec.readString(dataChannel, cursors[i] + DataSize.dataKeyLength + key.length),
+                            expireAts[i]
+                    );
+                }
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    private long[] liveCursors(FileChannel indexChannel) throws IOException {
+        return liveCursors(indexChannel, null);
+    }
+
+    /**
+     * @param expireAts receives the expiration of each returned offset at the same position, if present,
+     *                  room for the rows of both indexes
+     * @return offsets of the rows neither invalidated nor expired, in either index
+     */
+    private long[] liveCursors(FileChannel indexChannel, long[] expireAts) throws IOException {
+        int count = countOfKeys(indexChannel);
+        long[] cursors = new long[count + deltaRows.size()];
+        int liveCount = 0;
+
+        long timestamp = System.currentTimeMillis();
+        ByteBuffer rows = ByteBuffer.allocate((int) (DataSize.mergeBatchRows * DataSize.indexRowLength));
+        for (int start = 0; start < count; start += DataSize.mergeBatchRows) {
+            int end = Math.min(count, start + DataSize.mergeBatchRows);
+            rows.clear().limit((int) ((end - start) * DataSize.indexRowLength));
+            readFully(indexChannel, rows, DataSize.indexFileHeaderSize + start * DataSize.indexRowLength);
+
+            for (int i = 0; i < end - start; i++) {
+                int offset = (int) (i * DataSize.indexRowLength);
+                long cursor = rows.getLong(offset + DataSize.indexCursorOffset);
+                long expireAt = rows.getLong(offset + DataSize.indexExpireAtOffset);
+                if (alive(cursor, expireAt, timestamp)) {
+                    if (expireAts != null) {
+                        expireAts[liveCount] = expireAt;
+                    }
+                    cursors[liveCount++] = cursor;
+                }
+            }
+        }
+        for (long[] row : deltaRows.values()) {
+            if (liveCount < cursors.length && alive(row[0], row[1], timestamp)) {
+                if (expireAts != null) {
+                    expireAts[liveCount] = row[1];
+                }
+                cursors[liveCount++] = row[0];
+            }
+        }
+        return Arrays.copyOf(cursors, liveCount);
+    }
+
+    private String readFileContent(String key, byte[] hash) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lockRead();
+        try {
+            long[] dataCursor = new long[2];
+            MappedByteBuffer index = indexMap;
+            if (index != null) {
+                if (!locate(index, hash, dataCursor)) {
+                    return null;
+                }
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+                    if (!locate(fileChannel, hash, dataCursor)) {
+                        return null;
+                    }
+                }
+            }
+            if (!alive(dataCursor[0], dataCursor[1], System.currentTimeMillis())) {
+                return null;
+            }
+
+            MappedByteBuffer data = dataMap;
+            if (data != null && dataCursor[0] < data.capacity()) {
+                return readMappedRecord(data, dataCursor[0], keyBytes, codec);
+            }
+            try (FileChannel fileChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                return readRecord(fileChannel, dataCursor[0], keyBytes, codec);
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * looks up the keys in hash order with one walk over the index, then reads the records in the order of their
+     * offsets, so that the data file is read front to back
+     */
+    private Map<String, String> readFileContents(Map<String, byte[]> keys) {
+        Map<String, String> results = new HashMap<>(keys.size());
+        if (keys.isEmpty()) {
+            return results;
+        }
+
+        lockRead();
+        try {
+            List<Map.Entry<String, byte[]>> sorted = new ArrayList<>(keys.entrySet());
+            sorted.sort((a, b) -> Arrays.compareUnsigned(a.getValue(), b.getValue()));
+
+            int n = sorted.size();
+            byte[][] hashes = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = sorted.get(i).getValue();
+            }
+            int[] rowIds = new int[n];
+            long[] cursors = new long[n];
+            long[] expireAts = new long[n];
+            long[] cursorHolder = new long[2];
+            MappedByteBuffer index = indexMap;
+            if (index != null) {
+                for (int i = 0; i < n; i++) {
+                    rowIds[i] = locate(index, hashes[i], cursorHolder) ? 0 : -1;
+                    cursors[i] = cursorHolder[0];
+                    expireAts[i] = cursorHolder[1];
+                }
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+                    locateRows(fileChannel, countOfKeys(fileChannel), hashes, rowIds, cursors, expireAts);
+                }
+                for (int i = 0; i < n; i++) {
+                    if (rowIds[i] < 0 && locateDelta(hashes[i], cursorHolder)) {
+                        rowIds[i] = 0;
+                        cursors[i] = cursorHolder[0];
+                        expireAts[i] = cursorHolder[1];
+                    }
+                }
+            }
+
+            long timestamp = System.currentTimeMillis();
+            List<Integer> hits = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (rowIds[i] >= 0 && alive(cursors[i], expireAts[i], timestamp)) {
+                    hits.add(i);
+                }
+            }
+            hits.sort(Comparator.comparingLong(i -> cursors[i]));
+
+            MappedByteBuffer data = dataMap;
+            try (FileChannel fileChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                for (int i : hits) {
+                    String key = sorted.get(i).getKey();
+                    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                    String value = data != null && cursors[i] < data.capacity() ?
+                            readMappedRecord(data, cursors[i], keyBytes, codec) :
+                            readRecord(fileChannel, cursors[i], keyBytes, codec);
+                    if (value != null) {
+                        results.put(key, value);
+                    }
+                }
+            }
+            return results;
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * same as {@link #readRecord}, on the mapped data file
+     */
+    private static String readMappedRecord(ByteBuffer data, long cursor, byte[] keyBytes,
+                                           ValueCodec codec) throws IOException {
+        if (cursor + DataSize.dataKeyLength + keyBytes.length > data.capacity()) {
+            throw new IOException("fail to read cache file");
+        }
+        int keyLength = data.getInt((int) cursor);
+        int keyOffset = (int) cursor + DataSize.dataKeyLength;
+        if (keyLength != keyBytes.length ||
+                !data.slice(keyOffset, keyLength).equals(ByteBuffer.wrap(keyBytes))) {
+            return null;
+        }
+
+        return codec.readString(data, keyOffset + keyLength);
+    }
+
+    /**
+     * @return the value of the record, or null if the record belongs to another key with the same hash
+     */
+    private static String readRecord(FileChannel dataChannel, long cursor, byte[] keyBytes,
+                                     ValueCodec codec) throws IOException {
+        if (!Arrays.equals(readKey(dataChannel, cursor), keyBytes)) {
+            return null;
+        }
+        return codec.readString(dataChannel, cursor + DataSize.dataKeyLength + keyBytes.length);
+    }
+
+    private static byte[] readKey(FileChannel dataChannel, long cursor) throws IOException {
+        ByteBuffer keyHeader = ByteBuffer.allocate(DataSize.dataKeyLength);
+        readFully(dataChannel, keyHeader, cursor);
+        byte[] key = new byte[keyHeader.getInt(0)];
+        readFully(dataChannel, ByteBuffer.wrap(key), cursor + DataSize.dataKeyLength);
+        return key;
+    }
+
+    private static int recordSize(FileChannel dataChannel, long cursor, ValueCodec codec) throws IOException {
+        ByteBuffer keyHeader = ByteBuffer.allocate(DataSize.dataKeyLength);
+        readFully(dataChannel, keyHeader, cursor);
+        long valueCursor = cursor + DataSize.dataKeyLength + keyHeader.getInt(0);
+        return (int) (valueCursor - cursor) + codec.recordSize(dataChannel, valueCursor);
+    }
+
+    private static byte[] encodeRecord(byte[] keyBytes, byte[] value, ValueCodec codec) {
+        byte[] valueRecord = codec.encode(value);
+        return ByteBuffer.allocate(DataSize.dataKeyLength + keyBytes.length + valueRecord.length)
+                .putInt(keyBytes.length).put(keyBytes).put(valueRecord)
+                .array();
+    }
+
+    private static boolean alive(long cursor, long expireAt, long timestamp) {
+        return cursor != DataSize.tombstone && (expireAt == 0 || expireAt > timestamp);
+    }
+
+    private static class PendingWrite {
+        PendingWrite(String key, String value, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        final String key;
+        /**
+         * null for an invalidation
+         */
+        final String value;
+        final long expireAt;
+
+        /**
+         * set by the committing writer under the write mutex
+         */
+        IOException failure;
+    }
+
+    /**
+     * queues the writes, then logs everything queued so far as one group once the write mutex is held.
+     * writers arriving while a group is being logged are picked up together by the next one
+     */
+    private void saveFileContent(List<PendingWrite> writes) {
+        pendingWrites.addAll(writes);
+
+        lockWriter();
+        try {
+            commitPendingWrites();
+        } finally {
+            unlockWriter();
+        }
+
+        for (PendingWrite write : writes) {
+            if (write.failure != null) {
+                throw Rethrow.rethrow(write.failure);
+            }
+        }
+    }
+
+    /**
+     * should be called with the write mutex held
+     */
+    private void commitPendingWrites() {
+        List<PendingWrite> drained = new ArrayList<>();
+        TreeMap<byte[], PendingWrite> group = new TreeMap<>(Arrays::compareUnsigned);
+        PendingWrite write;
+        while ((write = pendingWrites.poll()) != null) {
+            drained.add(write);
+            group.put(StringHelper.digest(write.key), write);
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(group.size());
+        for (PendingWrite pending : group.values()) {
+            entries.add(new WriteAheadLog.Entry(WriteAheadLog.PUT, pending.key, pending.value, pending.expireAt));
+        }
+
+        try {
+            logWrites(entries, group.values());
+            applyIfNeeded();
+        } catch (IOException e) {
+            for (PendingWrite failed : drained) {
+                failed.failure = e;
+            }
+        }
+    }
+
+    /**
+     * appends the entries to the log and keeps the writes until they are applied.
+     * in shared mode the other processes learn about the new end of the log.
+     * should be called with the write mutex held
+     */
+    private void logWrites(List<WriteAheadLog.Entry> entries, Collection<PendingWrite> writes) throws IOException {
+        if (syncMillis <= 0 && writeAheadLog.size() >= DataSize.walCheckpointBytes) {
+            checkpoint();
+        }
+
+        if (processLock == null) {
+            writeAheadLog.append(entries);
+            if (syncMillis <= 0) {
+                writeAheadLog.sync();
+            }
+            for (PendingWrite write : writes) {
+                unappliedWrites.put(write.key, write);
+            }
+            return;
+        }
+
+        if (writeAheadLog.size() > walPosition) {
+            // a process died before it published the end, what it appended intact is kept, a torn record is not
+            synchronized (processLock) {
+                readWriteAheadLog();
+            }
+            if (writeAheadLog.size() > walPosition) {
+                writeAheadLog.truncate(walPosition);
+            }
+        }
+        writeAheadLog.append(entries);
+        if (syncMillis <= 0) {
+            writeAheadLog.sync();
+        }
+        synchronized (processLock) {
+            for (PendingWrite write : writes) {
+                unappliedWrites.put(write.key, write);
+                if (write.value != null) {
+                    keyFilter.add(StringHelper.digest(write.key));
+                }
+            }
+            walPosition = writeAheadLog.size();
+            processLock.writeWalEnd(walPosition);
+        }
+    }
+
+    /**
+     * applies the logged writes when too many are kept in memory, otherwise they wait for the sync task.
+     * should be called with the write mutex held
+     */
+    private void applyIfNeeded() throws IOException {
+        if (unappliedWrites.size() >= DataSize.maxUnappliedWrites) {
+            applyLoggedWrites();
+        }
+    }
+
+    /**
+     * should be called with the write lock held
+     */
+    private void applyGroup(SortedMap<byte[], PendingWrite> group) throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+
+        mergeIntoFiles(group);
+        for (byte[] hash : group.keySet()) {
+            keyFilter.add(hash);
+        }
+
+        if (deltaRowCount >= DataSize.maxDeltaRows) {
+            mergeDeltaIndex();
+        }
+        if (memoryMapped) {
+            remapGrownData();
+        }
+    }
+
+    /**
+     * appends the records in hash order, then replaces the offsets in the rows of the keys the index has,
+     * and appends rows for the other keys to the delta index, so that a group never rewrites the index.
+     * should be called with the write lock held
+     */
+    private void mergeIntoFiles(SortedMap<byte[], PendingWrite> group) throws IOException {
+        int n = group.size();
+        byte[][] hashes = group.keySet().toArray(new byte[0][]);
+        PendingWrite[] writes = group.values().toArray(new PendingWrite[0]);
+
+        try (FileChannel indexChannel = FileChannel.open(
+                Path.of(indexFileName),
+                Set.of(StandardOpenOption.WRITE, StandardOpenOption.READ)
+        );
+             FileChannel dataChannel = FileChannel.open(
+                     Path.of(dataFileName),
+                     Set.of(StandardOpenOption.WRITE, StandardOpenOption.READ)
+             )) {
+            int totalCount = countOfKeys(indexChannel);
+
+            long[] cursors = appendRecords(dataChannel, writes, codec);
+
+            int[] rowIds = new int[n];
+            long[] previousCursors = new long[n];
+            locateRows(indexChannel, totalCount, hashes, rowIds, previousCursors, new long[n]);
+
+            List<byte[]> deltaHashes = new ArrayList<>();
+            List<long[]> appendedRows = new ArrayList<>();
+            long[] cursorHolder = new long[2];
+            for (int i = 0; i < n; i++) {
+                if (rowIds[i] < 0) {
+                    previousCursors[i] = locateDelta(hashes[i], cursorHolder) ? cursorHolder[0] : DataSize.tombstone;
+                    deltaHashes.add(hashes[i]);
+                    appendedRows.add(new long[]{cursors[i], writes[i].expireAt});
+                } else {
+                    writeCursor(indexChannel, rowIds[i], cursors[i], writes[i].expireAt);
+                }
+
+                if (previousCursors[i] != DataSize.tombstone && deadBytes >= 0) {
+                    // the previous value is replaced, expired or not
+                    deadBytes += recordSize(dataChannel, previousCursors[i], codec);
+                }
+            }
+            appendDeltaRows(deltaHashes, appendedRows);
+        }
+    }
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * merges the rows of the delta index into a copy of the index in one pass, the copy replaces the index
+     * by a rename, so that a crash leaves either the old or the new index behind. the records are forced before,
+     * the new index never refers to anything that is not on disk. the new index has a new id,
+     * so a delta index left from before is not read along with it.
+     * should be called with the write lock held
+     */
+    private void mergeDeltaIndex() throws IOException {
+        List<Map.Entry<byte[], long[]>> inserts = new ArrayList<>(deltaRows.size());
+        for (Map.Entry<byte[], long[]> entry : deltaRows.entrySet()) {
+            // an invalidated key is in neither index
+            if (entry.getValue()[0] != DataSize.tombstone) {
+                inserts.add(entry);
+            }
+        }
 
-    private final String indexFileName;
+        try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+             FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.WRITE);
+             FileChannel mergeChannel = FileChannel.open(
+                     Path.of(mergeIndexFileName),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+             )) {
+            dataChannel.force(false);
+            int totalCount = countOfKeys(indexChannel);
+
+            ByteBuffer header = ByteBuffer.allocate(DataSize.indexFileHeaderSize);
+            readFully(indexChannel, header, 0);
+            header.putInt(DataSize.indexCountOffset, totalCount + inserts.size())
+                    .putLong(DataSize.indexIdOffset, ThreadLocalRandom.current().nextLong())
+                    .clear();
+            writeFully(mergeChannel, header);
+
+            ByteBuffer rows = ByteBuffer.allocate((int) (DataSize.mergeBatchRows * DataSize.indexRowLength));
+            ByteBuffer output = ByteBuffer.allocate(DataSize.appendBufferSize);
+            int j = 0;
+            for (int start = 0; start < totalCount; start += DataSize.mergeBatchRows) {
+                int end = Math.min(totalCount, start + DataSize.mergeBatchRows);
+                rows.clear().limit((int) ((end - start) * DataSize.indexRowLength));
+                readFully(indexChannel, rows, DataSize.indexFileHeaderSize + start * DataSize.indexRowLength);
+
+                for (int i = 0; i < end - start; i++) {
+                    int offset = (int) (i * DataSize.indexRowLength);
+                    while (j < inserts.size() && compareHash(rows, offset, inserts.get(j).getKey()) > 0) {
+                        putRow(mergeChannel, output, inserts.get(j++));
+                    }
+                    reserveRow(mergeChannel, output).put(rows.array(), offset, (int) DataSize.indexRowLength);
+                }
+            }
+            while (j < inserts.size()) {
+                putRow(mergeChannel, output, inserts.get(j++));
+            }
+            writeFully(mergeChannel, output.flip());
+            mergeChannel.force(true);
+        }
 
-    private final String dataFileName;
+        Files.move(Path.of(mergeIndexFileName), Path.of(indexFileName),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        resetDeltaIndex();
+        if (memoryMapped) {
+            indexMap = map(indexFileName);
+        }
+    }
 
-    @Override
-    public Set<String> keys(String pattern) {
-        Set<String> allKeys = new HashSet<>(List.of(readAllKeys()));
-        StringHelper.filterKeysByPattern(allKeys, pattern);
-        return allKeys;
+    private static void putRow(FileChannel fileChannel, ByteBuffer buffer,
+                               Map.Entry<byte[], long[]> row) throws IOException {
+        reserveRow(fileChannel, buffer).put(row.getKey()).putLong(row.getValue()[0]).putLong(row.getValue()[1]);
     }
 
-    @Override
-    public <T> void save(String key, T value, long expireMillis) {
-        savePersist(key, value);
+    /**
+     * flushes the buffer if it has no room for another row
+     */
+    private static ByteBuffer reserveRow(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < DataSize.indexRowLength) {
+            writeFully(fileChannel, buffer.flip());
+            buffer.clear();
+        }
+        return buffer;
     }
 
-    @Override
-    public <T> void savePersist(String key, T value) {
-        saveFileContent(key, value.toString());
-        md5Digests.put(new String(StringHelper.digest(key)), "");
+    /**
+     * @return offsets of the appended records
+     */
+    private static long[] appendRecords(FileChannel dataChannel, PendingWrite[] writes,
+                                        ValueCodec codec) throws IOException {
+        long[] cursors = new long[writes.length];
+        long cursor = dataChannel.size();
+        dataChannel.position(cursor);
+
+        ByteBuffer buffer = ByteBuffer.allocate(DataSize.appendBufferSize);
+        for (int i = 0; i < writes.length; i++) {
+            byte[] record = encodeRecord(
+                    writes[i].key.getBytes(StandardCharsets.UTF_8),
+                    writes[i].value.getBytes(StandardCharsets.UTF_8),
+                    codec
+            );
+            int size = record.length;
+            if (buffer.remaining() < size) {
+                writeFully(dataChannel, buffer.flip());
+                buffer.clear();
+            }
+
+            if (size > buffer.capacity()) {
+                writeFully(dataChannel, ByteBuffer.wrap(record));
+            } else {
+                buffer.put(record);
+            }
+
+            cursors[i] = cursor;
+            cursor += size;
+        }
+        writeFully(dataChannel, buffer.flip());
+        return cursors;
     }
 
-    @Override
-    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
-        saveBatchPersist(data);
+    /**
+     * finds the row of each sorted hash, or the negative value of its possible row id as {@link #indexOf} does.
+     * a small group is looked up by binary search, a large one by a single sequential scan of the index
+     */
+    private static void locateRows(FileChannel indexChannel, int totalCount, byte[][] hashes,
+                                   int[] rowIds, long[] cursors, long[] expireAts) throws IOException {
+        // a random probe costs about as much as reading 64 rows in sequence
+        int probes = 32 - Integer.numberOfLeadingZeros(totalCount);
+        if ((long) hashes.length * probes < totalCount / 64) {
+            long[] cursorHolder = new long[2];
+            for (int i = 0; i < hashes.length; i++) {
+                rowIds[i] = indexOf(indexChannel, totalCount, hashes[i], cursorHolder);
+                cursors[i] = cursorHolder[0];
+                expireAts[i] = cursorHolder[1];
+            }
+            return;
+        }
+
+        ByteBuffer rows = ByteBuffer.allocate((int) (DataSize.mergeBatchRows * DataSize.indexRowLength));
+        int j = 0;
+        for (int start = 0; start < totalCount && j < hashes.length; start += DataSize.mergeBatchRows) {
+            int end = Math.min(totalCount, start + DataSize.mergeBatchRows);
+            rows.clear().limit((int) ((end - start) * DataSize.indexRowLength));
+            readFully(indexChannel, rows, DataSize.indexFileHeaderSize + start * DataSize.indexRowLength);
+
+            for (int i = start; i < end && j < hashes.length; i++) {
+                int offset = (int) ((i - start) * DataSize.indexRowLength);
+
+                int cmp = compareHash(rows, offset, hashes[j]);
+                while (cmp > 0) {
+                    rowIds[j++] = -(i + 1);
+                    if (j == hashes.length) {
+                        return;
+                    }
+                    cmp = compareHash(rows, offset, hashes[j]);
+                }
+                if (cmp == 0) {
+                    rowIds[j] = i;
+                    cursors[j] = rows.getLong(offset + DataSize.indexCursorOffset);
+                    expireAts[j++] = rows.getLong(offset + DataSize.indexExpireAtOffset);
+                }
+            }
+        }
+
+        while (j < hashes.length) {
+            rowIds[j++] = -(totalCount + 1);
+        }
     }
 
-    @Override
-    public <T> void saveBatchPersist(Map<String, T> data) {
-        data.forEach(this::savePersist);
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("fail to read cache file");
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    @Override
-    public <T> T load(String key) {
-        String digest = new String(StringHelper.digest(key));
-        if (md5Digests.containsKey(digest)) {
-            return (T) readFileContent(key);
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
         }
-        return null;
     }
 
-    @Override
-    public void invalidate(String key) {
-        throw new UnsupportedOperationException();
+    private static void writeCursor(FileChannel fileChannel, int indexRowId,
+                                    long cursor, long expireAt) throws IOException {
+        byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+        byte[] expireContainer = new byte[DataSize.indexExpireAtSize];
+        longToBytes(cursor, cursorContainer);
+        longToBytes(expireAt, expireContainer);
+        fileChannel.position(DataSize.indexFileHeaderSize + indexRowId * DataSize.indexRowLength +
+                DataSize.indexCursorOffset);
+        fileChannel.write(new ByteBuffer[]{
+                ByteBuffer.wrap(cursorContainer),
+                ByteBuffer.wrap(expireContainer)
+        });
     }
 
-    @Override
-    public void invalidateBatch(Collection<String> keys) {
-        throw new UnsupportedOperationException();
+    private static void writeIndexHeader(FileChannel fileChannel, int count, ValueCodec codec) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DataSize.indexFileHeaderSize);
+        header.putInt(DataSize.indexMagic)
+                .putInt(DataSize.indexVersion)
+                .putInt(codec.compressed() ? DataSize.flagCompressed : 0)
+                .putInt(count)
+                .putInt(codec.dictionary().length)
+                .putLong(DataSize.indexIdOffset, ThreadLocalRandom.current().nextLong())
+                .clear();
+        fileChannel.write(header, 0);
     }
 
+    private static long readIndexId(FileChannel indexChannel) throws IOException {
+        ByteBuffer id = ByteBuffer.allocate(Long.BYTES);
+        indexChannel.read(id, DataSize.indexIdOffset);
+        return id.hasRemaining() ? 0 : id.getLong(0);
+    }
 
     /**
-     * File IO
+     * reads the rows appended to the delta index since the last call, or all of them once the index is replaced.
+     * a torn row at the end is left out, the next append writes over it.
+     * should be called at init or with a region of the lock file held
+     *
+     * @return whether the index was replaced since the last call
      */
-    private static class DataSize {
-        static final int indexCountSize = Integer.BYTES;
-        static final int indexFileHeaderSize = indexCountSize;
+    private boolean loadDeltaIndex() throws IOException {
+        long id;
+        try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            id = readIndexId(indexChannel);
+        }
+        boolean replaced = id != indexId;
+        indexId = id;
+
+        Path path = Path.of(deltaIndexFileName);
+        ByteBuffer header = ByteBuffer.allocate(DataSize.deltaHeaderSize);
+        try (FileChannel deltaChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            deltaChannel.read(header, 0);
+            int rowCount = (int) ((deltaChannel.size() - DataSize.deltaHeaderSize) / DataSize.indexRowLength);
+            if (header.hasRemaining() || header.getLong(0) != id) {
+                // written for a replaced index
+                deltaRows.clear();
+                deltaRowCount = 0;
+                deltaIndexValid = false;
+                return replaced;
+            }
+            if (replaced || !deltaIndexValid || rowCount < deltaRowCount) {
+                deltaRows.clear();
+                deltaRowCount = 0;
+                deltaIndexValid = true;
+            }
 
+            ByteBuffer rows = ByteBuffer.allocate((int) (DataSize.mergeBatchRows * DataSize.indexRowLength));
+            for (int start = deltaRowCount; start < rowCount; start += DataSize.mergeBatchRows) {
+                int end = Math.min(rowCount, start + DataSize.mergeBatchRows);
+                rows.clear().limit((int) ((end - start) * DataSize.indexRowLength));
+                readFully(deltaChannel, rows, DataSize.deltaHeaderSize + start * DataSize.indexRowLength);
+                for (int i = 0; i < end - start; i++) {
+                    int offset = (int) (i * DataSize.indexRowLength);
+                    byte[] hash = new byte[DataSize.indexHashSize];
+                    rows.get(offset, hash);
+                    deltaRows.put(hash, new long[]{
+                            rows.getLong(offset + DataSize.indexCursorOffset),
+                            rows.getLong(offset + DataSize.indexExpireAtOffset)
+                    });
+                }
+            }
+            deltaRowCount = rowCount;
+        }
+        return replaced;
+    }
 
-        // index row -> key_length int, key byte(indexMaxKeyLength), offset long
-        static final int indexKeyLength = Integer.BYTES;
-        static final int indexMaxKeyLength = 256;
-        static final int indexCursorSize = Long.BYTES;
-        static final long indexRowLength = indexKeyLength + indexMaxKeyLength + indexCursorSize;
+    /**
+     * appends the rows with a single write, starting the file over if it belongs to a replaced index.
+     * should be called with the write lock held
+     */
+    private void appendDeltaRows(List<byte[]> hashes, List<long[]> rows) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        if (!deltaIndexValid) {
+            resetDeltaIndex();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (hashes.size() * DataSize.indexRowLength));
+        for (int i = 0; i < hashes.size(); i++) {
+            buffer.put(hashes.get(i)).putLong(rows.get(i)[0]).putLong(rows.get(i)[1]);
+        }
+        try (FileChannel deltaChannel = FileChannel.open(Path.of(deltaIndexFileName), StandardOpenOption.WRITE)) {
+            deltaChannel.position(DataSize.deltaHeaderSize + deltaRowCount * DataSize.indexRowLength);
+            writeFully(deltaChannel, buffer.flip());
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            deltaRows.put(hashes.get(i), rows.get(i));
+        }
+        deltaRowCount += hashes.size();
+    }
 
-        // data row -> value_length int, value text(variable)
-        static final int valueHeaderSize = Integer.BYTES;
+    /**
+     * empties the delta index for the current index.
+     * should be called with the write lock held, or at init
+     */
+    private void resetDeltaIndex() throws IOException {
+        try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+            indexId = readIndexId(indexChannel);
+        }
+        try (FileChannel deltaChannel = FileChannel.open(
+                Path.of(deltaIndexFileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            writeFully(deltaChannel, ByteBuffer.allocate(DataSize.deltaHeaderSize).putLong(0, indexId));
+        }
+        deltaRows.clear();
+        deltaRowCount = 0;
+        deltaIndexValid = true;
+    }
 
-        static final byte[][] swapBuffers = new byte[][]{
-                new byte[(int) (indexRowLength)],
-                new byte[(int) (2 * indexRowLength)],
-                new byte[(int) (4 * indexRowLength)],
-                new byte[(int) (8 * indexRowLength)],
-                new byte[(int) (16 * indexRowLength)],
-                new byte[(int) (32 * indexRowLength)],
-        };
+    /**
+     * looks the hash up in the delta index, then in the index, a key has a row in one of them at most
+     *
+     * @param cursorHolder receives the offset and the expiration of the row
+     * @return whether either has a row for the hash
+     */
+    private boolean locate(FileChannel indexChannel, byte[] hash, long[] cursorHolder) throws IOException {
+        return locateDelta(hash, cursorHolder) ||
+                indexOf(indexChannel, countOfKeys(indexChannel), hash, cursorHolder) >= 0;
     }
 
-    @Override
-    public void init() {
+    /**
+     * same as {@link #locate(FileChannel, byte[], long[])}, on a mapped index
+     */
+    private boolean locate(ByteBuffer index, byte[] hash, long[] cursorHolder) {
+        int count = index.capacity() < DataSize.indexFileHeaderSize ? 0 : index.getInt(DataSize.indexCountOffset);
+        return locateDelta(hash, cursorHolder) || indexOf(index, count, hash, cursorHolder) >= 0;
+    }
+
+    private boolean locateDelta(byte[] hash, long[] cursorHolder) {
+        long[] row = deltaRows.get(hash);
+        if (row == null) {
+            return false;
+        }
+        cursorHolder[0] = row[0];
+        cursorHolder[1] = row[1];
+        return true;
+    }
+
+    /**
+     * logs the invalidations, which replace the offsets of the keys with tombstones once applied.
+     * the rows and values stay in place until the compactor rewrites the files
+     */
+    private void invalidateFileContent(Collection<String> keys) {
+        lockWriter();
         try {
-            ensureFile(this.indexFileName);
-            ensureFile(this.dataFileName);
+            List<WriteAheadLog.Entry> entries = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                entries.add(new WriteAheadLog.Entry(WriteAheadLog.INVALIDATE, key, null, 0));
+            }
+            List<PendingWrite> writes = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                writes.add(new PendingWrite(key, null, 0));
+            }
+            logWrites(entries, writes);
+            applyIfNeeded();
         } catch (IOException e) {
             throw Rethrow.rethrow(e);
-        }
-
-        String[] keys = readAllKeys();
-        for (String key : keys) {
-            md5Digests.put(new String(StringHelper.digest(key)), "");
+        } finally {
+            unlockWriter();
         }
     }
 
-    private static void ensureFile(String filePath) throws IOException {
-        Path path = Path.of(filePath);
+    /**
+     * should be called with the write lock held
+     */
+    private void applyInvalidation(Collection<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
 
-        StringBuilder buffer = new StringBuilder(filePath.length());
-        Iterator<Path> iterator = path.normalize().iterator();
-        while (iterator.hasNext()) {
-            buffer.append(iterator.next().toString());
-            Path current = Path.of(buffer.toString());
+        try (FileChannel indexChannel = FileChannel.open(
+                Path.of(indexFileName),
+                Set.of(StandardOpenOption.WRITE, StandardOpenOption.READ)
+        );
+             FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+            int totalCount = countOfKeys(indexChannel);
+
+            List<byte[]> deltaHashes = new ArrayList<>();
+            List<long[]> deltaTombstones = new ArrayList<>();
+            long[] dataCursor = new long[2];
+            for (String key : keys) {
+                byte[] hash = StringHelper.digest(key);
+                int indexRowId = indexOf(indexChannel, totalCount, hash, dataCursor);
+                if (indexRowId < 0 && !locateDelta(hash, dataCursor) || dataCursor[0] == DataSize.tombstone ||
+                        !Arrays.equals(readKey(dataChannel, dataCursor[0]), key.getBytes(StandardCharsets.UTF_8))) {
+                    continue;
+                }
 
-            if (!Files.exists(current)) {
-                if (iterator.hasNext()) {
-                    Files.createDirectory(current);
+                if (deadBytes >= 0) {
+                    deadBytes += recordSize(dataChannel, dataCursor[0], codec);
+                }
+                if (indexRowId < 0) {
+                    deltaHashes.add(hash);
+                    deltaTombstones.add(new long[]{DataSize.tombstone, 0});
                 } else {
-                    Files.createFile(current);
+                    writeCursor(indexChannel, indexRowId, DataSize.tombstone, 0);
                 }
             }
-
-            if (iterator.hasNext()) {
-                buffer.append("/");
-            }
+            appendDeltaRows(deltaHashes, deltaTombstones);
         }
     }
 
-    @Override
-    public void destroy() {
-        CacheFacade.super.destroy();
-    }
-
-    private String[] readAllKeys() {
+    /**
+     * runs on the compactor thread. checks the next window of rows and turns the expired ones into tombstones,
+     * so that expired values are reclaimed by the next compaction without a full scan of the index.
+     * the delta index is checked whole each time the window wraps around
+     */
+    private void sweepExpired() throws IOException {
+        lockWriter();
         try {
-            lock.readLock().lock();
-
-            try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
-                int count = countOfKeys(fileChannel);
-                if (count == 0) {
-                    return new String[0];
+            List<Integer> expiredRows = new ArrayList<>();
+            List<Long> expiredCursors = new ArrayList<>();
+            List<byte[]> expiredHashes = new ArrayList<>();
+            List<Long> expiredDeltaCursors = new ArrayList<>();
+
+            lockRead();
+            try {
+                try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
+                    int count = countOfKeys(indexChannel);
+                    long timestamp = System.currentTimeMillis();
+                    if (sweepCursor >= count) {
+                        sweepCursor = 0;
+                        for (Map.Entry<byte[], long[]> entry : deltaRows.entrySet()) {
+                            long[] row = entry.getValue();
+                            if (row[0] != DataSize.tombstone && !alive(row[0], row[1], timestamp)) {
+                                expiredHashes.add(entry.getKey());
+                                expiredDeltaCursors.add(row[0]);
+                            }
+                        }
+                    }
+                    int end = Math.min(count, sweepCursor + DataSize.sweepBatchRows);
+
+                    ByteBuffer rows = ByteBuffer.allocate((int) ((end - sweepCursor) * DataSize.indexRowLength));
+                    readFully(indexChannel, rows, DataSize.indexFileHeaderSize + sweepCursor * DataSize.indexRowLength);
+
+                    for (int i = sweepCursor; i < end; i++) {
+                        int offset = (int) ((i - sweepCursor) * DataSize.indexRowLength);
+                        long cursor = rows.getLong(offset + DataSize.indexCursorOffset);
+                        long expireAt = rows.getLong(offset + DataSize.indexExpireAtOffset);
+                        if (cursor != DataSize.tombstone && !alive(cursor, expireAt, timestamp)) {
+                            expiredRows.add(i);
+                            expiredCursors.add(cursor);
+                        }
+                    }
+                    sweepCursor = end;
                 }
+            } finally {
+                unlockRead();
+            }
 
-                String[] container = new String[count];
-
-                byte[] keyHeader = new byte[DataSize.indexKeyLength];
-                byte[] keyContainer = new byte[DataSize.indexMaxKeyLength];
-                byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+            if (expiredRows.isEmpty() && expiredHashes.isEmpty()) {
+                return;
+            }
 
-                for (int i = 0; i < count; i++) {
-                    fileChannel.read(new ByteBuffer[]{
-                            ByteBuffer.wrap(keyHeader),
-                            ByteBuffer.wrap(keyContainer),
-                            ByteBuffer.wrap(cursorContainer)
-                    });
+            lockWrite();
+            try {
+                try (FileChannel indexChannel = FileChannel.open(
+                        Path.of(indexFileName),
+                        Set.of(StandardOpenOption.WRITE, StandardOpenOption.READ)
+                );
+                     FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                    for (int i = 0; i < expiredRows.size(); i++) {
+                        if (deadBytes >= 0) {
+                            deadBytes += recordSize(dataChannel, expiredCursors.get(i), codec);
+                        }
+                        writeCursor(indexChannel, expiredRows.get(i), DataSize.tombstone, 0);
+                    }
 
-                    int length = bytesToInt(keyHeader);
-                    String key = new String(keyContainer, 0, length, StandardCharsets.UTF_8);
-                    container[i] = key;
+                    List<long[]> tombstones = new ArrayList<>(expiredHashes.size());
+                    for (long cursor : expiredDeltaCursors) {
+                        if (deadBytes >= 0) {
+                            deadBytes += recordSize(dataChannel, cursor, codec);
+                        }
+                        tombstones.add(new long[]{DataSize.tombstone, 0});
+                    }
+                    appendDeltaRows(expiredHashes, tombstones);
                 }
-
-                return container;
+            } finally {
+                unlockWrite();
             }
-        } catch (IOException e) {
-            throw Rethrow.rethrow(e);
         } finally {
-            lock.readLock().unlock();
+            unlockWriter();
         }
     }
 
-    private String readFileContent(String key) {
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        if (keyBytes.length > DataSize.indexMaxKeyLength) {
-            return null;
+    /**
+     * runs on the compactor thread. the first run scans the index once to learn the amount of dead bytes,
+     * later runs rely on the counter maintained by writers
+     */
+    private void compactIfNeeded() throws IOException {
+        lockWriter();
+        try {
+            long dataSize = Files.size(Path.of(dataFileName));
+            if (deadBytes < 0) {
+                deadBytes = dataSize - referencedBytes();
+            }
+
+            if (deadBytes < DataSize.minCompactionBytes || deadBytes < dataSize * compactionThreshold) {
+                return;
+            }
+
+            compact();
+        } finally {
+            unlockWriter();
         }
+    }
 
+    /**
+     * should be called with the write mutex held
+     */
+    private long referencedBytes() throws IOException {
+        lockRead();
         try {
-            lock.readLock().lock();
+            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+                 FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
+                int count = countOfKeys(indexChannel);
 
-            long dataCursor;
-            try (FileChannel fileChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
-                int count = countOfKeys(fileChannel);
-
-                dataCursor = indexOf(fileChannel, count, key);
-                if (dataCursor < 0) {
-                    return null;
-                }
-            }
+                long referenced = codec.dictionaryRecordSize();
+                byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+                for (int i = 0; i < count; i++) {
+                    indexChannel.read(
+                            ByteBuffer.wrap(cursorContainer),
+                            DataSize.indexFileHeaderSize + i * DataSize.indexRowLength + DataSize.indexCursorOffset
+                    );
+                    long cursor = bytesToLong(cursorContainer);
+                    if (cursor == DataSize.tombstone) {
+                        continue;
+                    }
 
-            try (FileChannel fileChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ)) {
-                fileChannel.position(dataCursor);
-                byte[] valueHeader = new byte[DataSize.valueHeaderSize];
-                if (fileChannel.read(ByteBuffer.wrap(valueHeader)) < DataSize.valueHeaderSize) {
-                    throw new IOException("fail to read cache file");
+                    referenced += recordSize(dataChannel, cursor, codec);
                 }
-
-                int valueLength = bytesToInt(valueHeader);
-                byte[] valueContainer = new byte[valueLength];
-                if (fileChannel.read(ByteBuffer.wrap(valueContainer)) < valueLength) {
-                    throw new IOException("fail to read cache file");
+                for (long[] row : deltaRows.values()) {
+                    if (row[0] != DataSize.tombstone) {
+                        referenced += recordSize(dataChannel, row[0], codec);
+                    }
                 }
-
-                return new String(valueContainer, StandardCharsets.UTF_8);
+                return referenced;
             }
-        } catch (IOException e) {
-            throw Rethrow.rethrow(e);
         } finally {
-            lock.readLock().unlock();
+            unlockRead();
         }
     }
 
-    private void saveFileContent(String key, String value) {
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        if (keyBytes.length > DataSize.indexMaxKeyLength) {
-            return;
+    /**
+     * rewrites the live rows and their records into a new pair of files, then swaps the pair in.
+     * the copy is made under the read lock so lookups keep going, writers are held off by the write mutex.
+     * the marker file makes the two renames recoverable, see {@link #recoverCompaction}.
+     * the values are written in the configured format, with a freshly sampled dictionary if compressed.
+     * should be called with the write mutex held, or at init
+     */
+    private void compact() throws IOException {
+        // the log is reset after the swap, nothing it holds may be left out of the files
+        applyLoggedWrites();
+        if (!deltaRows.isEmpty()) {
+            // the copy walks one index
+            lockWrite();
+            try {
+                mergeDeltaIndex();
+            } finally {
+                unlockWrite();
+            }
         }
 
+        KeyFilter filter;
+        ValueCodec target;
+        ValueCodec source = codec;
+
+        lockRead();
         try {
-            lock.writeLock().lock();
+            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+                 FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ);
+                 FileChannel compactIndexChannel = FileChannel.open(
+                         Path.of(compactIndexFileName),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                 );
+                 FileChannel compactDataChannel = FileChannel.open(
+                         Path.of(compactDataFileName),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                 )) {
+                int count = countOfKeys(indexChannel);
+                filter = KeyFilter.create(keyFilterType, keyFilterCapacity, count);
+                target = compressValues ?
+                        ValueCodec.deflate(sampleDictionary(indexChannel, dataChannel, source, count)) :
+                        ValueCodec.RAW;
+                compactDataChannel.write(ByteBuffer.wrap(target.encodeDictionary()));
+
+                ByteBuffer row = ByteBuffer.allocate((int) DataSize.indexRowLength);
+                byte[] hash = new byte[DataSize.indexHashSize];
+
+                long timestamp = System.currentTimeMillis();
+                compactIndexChannel.position(DataSize.indexFileHeaderSize);
+                int liveCount = 0;
+                for (int i = 0; i < count; i++) {
+                    row.clear();
+                    readFully(indexChannel, row, DataSize.indexFileHeaderSize + i * DataSize.indexRowLength);
+
+                    long cursor = row.getLong(DataSize.indexCursorOffset);
+                    if (!alive(cursor, row.getLong(DataSize.indexExpireAtOffset), timestamp)) {
+                        continue;
+                    }
 
-            int totalCount;
-            int indexRowId;
-            try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ)) {
-                totalCount = countOfKeys(indexChannel);
+                    byte[] key = readKey(dataChannel, cursor);
+                    byte[] value = source.read(dataChannel, cursor + DataSize.dataKeyLength + key.length);
+                    row.putLong(DataSize.indexCursorOffset, compactDataChannel.position());
+                    row.get(0, hash);
+                    filter.add(hash);
 
-                long dataCursor = indexOf(indexChannel, totalCount, key);
-                if (dataCursor >= 0) {
-                    return;
+                    writeFully(compactDataChannel, ByteBuffer.wrap(encodeRecord(key, value, target)));
+                    writeFully(compactIndexChannel, row.clear());
+                    liveCount++;
                 }
 
-                indexRowId = (int) -dataCursor - 1;
+                writeIndexHeader(compactIndexChannel, liveCount, target);
+
+                compactDataChannel.force(true);
+                compactIndexChannel.force(true);
             }
+        } finally {
+            unlockRead();
+        }
 
-            long cursor;
-            try (FileChannel fileChannel = FileChannel.open(
-                    Path.of(dataFileName),
-                    StandardOpenOption.APPEND
-            )) {
-                cursor = fileChannel.position();
+        Files.createFile(Path.of(compactMarkerFileName));
 
-                byte[] valueHeader = new byte[DataSize.valueHeaderSize];
-                byte[] valueContainer = value.getBytes(StandardCharsets.UTF_8);
+        lockWrite();
+        try {
+            recoverCompaction();
+            resetDeltaIndex();
+            keyFilter = filter;
+            codec = target;
+            deadBytes = 0;
+            sweepCursor = 0;
+            if (memoryMapped) {
+                remap();
+            }
+        } finally {
+            unlockWrite();
+        }
 
-                intToBytes(valueContainer.length, valueHeader);
+        // the new pair was synced before the swap and holds every logged write
+        if (writeAheadLog.isOpen()) {
+            writeKeyFilter();
+            resetWriteAheadLog();
+        }
+    }
 
-                fileChannel.write(new ByteBuffer[]{
-                        ByteBuffer.wrap(valueHeader),
-                        ByteBuffer.wrap(valueContainer)
-                });
+    /**
+     * takes the leading bytes of values spread evenly over the index
+     */
+    private static byte[] sampleDictionary(FileChannel indexChannel, FileChannel dataChannel, ValueCodec source,
+                                           int count) throws IOException {
+        List<byte[]> samples = new ArrayList<>(DataSize.dictionarySamples);
+        byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+        int stride = Math.max(1, count / DataSize.dictionarySamples);
+        for (int i = 0; i < count; i += stride) {
+            indexChannel.read(
+                    ByteBuffer.wrap(cursorContainer),
+                    DataSize.indexFileHeaderSize + i * DataSize.indexRowLength + DataSize.indexCursorOffset
+            );
+            long cursor = bytesToLong(cursorContainer);
+            if (cursor == DataSize.tombstone) {
+                continue;
             }
 
-            try (FileChannel fileChannel = FileChannel.open(
-                    Path.of(indexFileName),
-                    Set.of(StandardOpenOption.WRITE, StandardOpenOption.READ)
-            )) {
-                byte[] fileHeader = new byte[DataSize.indexCountSize];
-                intToBytes(totalCount + 1, fileHeader);
-                fileChannel.write(ByteBuffer.wrap(fileHeader));
-
-                fileChannel.position(fileChannel.size());
-                fileChannel.write(ByteBuffer.wrap(DataSize.swapBuffers[0]));
+            int keyLength = readKey(dataChannel, cursor).length;
+            byte[] value = source.read(dataChannel, cursor + DataSize.dataKeyLength + keyLength);
+            samples.add(Arrays.copyOf(value, Math.min(value.length, DataSize.dictionarySampleLength)));
+        }
+        return ValueCodec.train(samples);
+    }
 
-                int diff = totalCount - indexRowId;
-                if (diff > 0) {
-                    int destinationRowId = totalCount;
-                    while (diff > 0) {
-                        int batchShift = Math.min(Integer.numberOfTrailingZeros(diff), 5);
-                        int batchSize = 1 << batchShift;
+    /**
+     * rewrites a version 1 or 2 pair, whose rows hold the keys in key order, into the current format
+     * through the same swap as {@link #compact}. the live rows are ordered by hash in memory first.
+     * should be called at init
+     */
+    private void convertLegacyFiles(int version) throws IOException {
+        long headerSize = version == 1 ? DataSize.version1IndexFileHeaderSize : DataSize.indexFileHeaderSize;
+        long countOffset = version == 1 ? 0 : DataSize.indexCountOffset;
+        long rowLength = version == 1 ? DataSize.version1IndexRowLength : DataSize.version2IndexRowLength;
+        ValueCodec source = version == 1 ? ValueCodec.RAW : readCodec();
+        ValueCodec target = compressValues ? ValueCodec.deflate(new byte[0]) : ValueCodec.RAW;
+
+        try (FileChannel indexChannel = FileChannel.open(Path.of(indexFileName), StandardOpenOption.READ);
+             FileChannel dataChannel = FileChannel.open(Path.of(dataFileName), StandardOpenOption.READ);
+             FileChannel compactIndexChannel = FileChannel.open(
+                     Path.of(compactIndexFileName),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+             );
+             FileChannel compactDataChannel = FileChannel.open(
+                     Path.of(compactDataFileName),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+             )) {
+            ByteBuffer countContainer = ByteBuffer.allocate(DataSize.indexCountSize);
+            readFully(indexChannel, countContainer, countOffset);
+            int count = countContainer.getInt(0);
+
+            // the keys are not kept in memory, each one is read again from its row of the source index
+            int[] rowIds = new int[count];
+            byte[][] hashes = new byte[count][];
+            long[] cursors = new long[count];
+            long[] expireAts = new long[count];
+            int liveCount = 0;
+
+            ByteBuffer row = ByteBuffer.allocate((int) rowLength);
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                row.clear();
+                readFully(indexChannel, row, headerSize + i * rowLength);
+
+                long cursor = row.getLong(DataSize.legacyCursorOffset);
+                long expireAt = version == 1 ? 0 : row.getLong(DataSize.legacyCursorOffset + Long.BYTES);
+                if (!alive(cursor, expireAt, timestamp)) {
+                    continue;
+                }
 
-                        long sourcePosition = DataSize.indexFileHeaderSize +
-                                (destinationRowId - batchSize) * DataSize.indexRowLength;
-                        fileChannel.position(sourcePosition);
-                        fileChannel.read(ByteBuffer.wrap(DataSize.swapBuffers[batchShift]));
-                        fileChannel.position(sourcePosition + DataSize.indexRowLength);
-                        fileChannel.write(ByteBuffer.wrap(DataSize.swapBuffers[batchShift]));
+                byte[] key = Arrays.copyOfRange(row.array(), DataSize.legacyKeyLength,
+                        DataSize.legacyKeyLength + row.getInt(0));
+                rowIds[liveCount] = i;
+                hashes[liveCount] = StringHelper.digest(new String(key, StandardCharsets.UTF_8));
+                cursors[liveCount] = cursor;
+                expireAts[liveCount] = expireAt;
+                liveCount++;
+            }
 
-                        diff -= batchSize;
-                        destinationRowId -= batchSize;
-                    }
-                }
+            Integer[] order = new Integer[liveCount];
+            for (int i = 0; i < liveCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(hashes[a], hashes[b]));
+
+            compactIndexChannel.position(DataSize.indexFileHeaderSize);
+            ByteBuffer keyRow = ByteBuffer.allocate(DataSize.legacyCursorOffset);
+            ByteBuffer newRow = ByteBuffer.allocate((int) DataSize.indexRowLength);
+            for (int i : order) {
+                keyRow.clear();
+                readFully(indexChannel, keyRow, headerSize + rowIds[i] * rowLength);
+                byte[] key = Arrays.copyOfRange(keyRow.array(), DataSize.legacyKeyLength,
+                        DataSize.legacyKeyLength + keyRow.getInt(0));
+                byte[] value = source.read(dataChannel, cursors[i]);
+
+                newRow.clear();
+                newRow.put(hashes[i]).putLong(compactDataChannel.position()).putLong(expireAts[i]).flip();
+                writeFully(compactDataChannel, ByteBuffer.wrap(encodeRecord(key, value, target)));
+                writeFully(compactIndexChannel, newRow);
+            }
 
-                byte[] keyHeader = new byte[DataSize.indexKeyLength];
-                byte[] keyContainer = new byte[DataSize.indexMaxKeyLength];
-                byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+            writeIndexHeader(compactIndexChannel, liveCount, target);
 
-                System.arraycopy(keyBytes, 0, keyContainer, 0, keyBytes.length);
+            compactDataChannel.force(true);
+            compactIndexChannel.force(true);
+        }
 
-                intToBytes(keyBytes.length, keyHeader);
-                longToBytes(cursor, cursorContainer);
+        Files.createFile(Path.of(compactMarkerFileName));
+        recoverCompaction();
+        Files.deleteIfExists(Path.of(keyFilterFileName));
+    }
 
-                fileChannel.position(DataSize.indexFileHeaderSize +
-                        indexRowId * DataSize.indexRowLength);
-                fileChannel.write(new ByteBuffer[]{
-                        ByteBuffer.wrap(keyHeader),
-                        ByteBuffer.wrap(keyContainer),
-                        ByteBuffer.wrap(cursorContainer)
-                });
+    /**
+     * finishes a compaction whose files were completely written, or drops a partial one
+     */
+    private void recoverCompaction() throws IOException {
+        Path marker = Path.of(compactMarkerFileName);
+        Path compactData = Path.of(compactDataFileName);
+        Path compactIndex = Path.of(compactIndexFileName);
+        if (Files.exists(marker)) {
+            if (Files.exists(compactData)) {
+                Files.move(compactData, Path.of(dataFileName),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
-        } catch (IOException e) {
-            throw Rethrow.rethrow(e);
-        } finally {
-            lock.writeLock().unlock();
+            if (Files.exists(compactIndex)) {
+                Files.move(compactIndex, Path.of(indexFileName),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.delete(marker);
+        } else {
+            Files.deleteIfExists(compactData);
+            Files.deleteIfExists(compactIndex);
         }
     }
 
     private static int countOfKeys(FileChannel fileChannel) throws IOException {
         byte[] fileHeader = new byte[DataSize.indexCountSize];
-        int n = fileChannel.read(ByteBuffer.wrap(fileHeader));
+        int n = fileChannel.read(ByteBuffer.wrap(fileHeader), DataSize.indexCountOffset);
         if (n < DataSize.indexCountSize) {
             return 0;
         }
@@ -332,37 +2565,54 @@ public class FileCache implements CacheFacade {
     }
 
     /**
-     * if key exists in the index file, returns its cursor value;
+     * if the hash exists in the index file, returns its row id and stores its cursor value and expiry in the holder;
      * otherwise returns negative value of its possible row id.
      * behavior is similar to {@link Arrays#binarySearch}
      */
-    private static long indexOf(FileChannel fileChannel, int totalCount, String key) throws IOException {
-        byte[] keyHeader = new byte[DataSize.indexKeyLength];
-        byte[] keyContainer = new byte[DataSize.indexMaxKeyLength];
-        byte[] cursorContainer = new byte[DataSize.indexCursorSize];
+    private static int indexOf(FileChannel fileChannel, int totalCount, byte[] hash,
+                               long[] cursorHolder) throws IOException {
+        ByteBuffer row = ByteBuffer.allocate((int) DataSize.indexRowLength);
 
         int low = 0;
         int high = totalCount - 1;
 
         while (low <= high) {
             int mid = (low + high) >>> 1;
-            long offset = DataSize.indexFileHeaderSize + mid * DataSize.indexRowLength;
-            fileChannel.position(offset);
-            fileChannel.read(new ByteBuffer[]{
-                    ByteBuffer.wrap(keyHeader),
-                    ByteBuffer.wrap(keyContainer),
-                    ByteBuffer.wrap(cursorContainer)
-            });
+            row.clear();
+            readFully(fileChannel, row, DataSize.indexFileHeaderSize + mid * DataSize.indexRowLength);
 
-            int keyLength = bytesToInt(keyHeader);
-            String indexKey = new String(
-                    keyContainer, 0, keyLength,
-                    StandardCharsets.UTF_8
-            );
+            int cmp = compareHash(row, 0, hash);
+            if (cmp == 0) {
+                cursorHolder[0] = row.getLong(DataSize.indexCursorOffset);
+                cursorHolder[1] = row.getLong(DataSize.indexExpireAtOffset);
+                return mid;
+            }
+
+            if (cmp < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * same as {@link #indexOf(FileChannel, int, byte[], long[])}, but probes the rows of a mapped index in place
+     */
+    private static int indexOf(ByteBuffer index, int totalCount, byte[] hash, long[] cursorHolder) {
+        int low = 0;
+        int high = totalCount - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = (int) (DataSize.indexFileHeaderSize + mid * DataSize.indexRowLength);
 
-            int cmp = indexKey.compareTo(key);
+            int cmp = compareHash(index, offset, hash);
             if (cmp == 0) {
-                return bytesToLong(cursorContainer);
+                cursorHolder[0] = index.getLong(offset + DataSize.indexCursorOffset);
+                cursorHolder[1] = index.getLong(offset + DataSize.indexExpireAtOffset);
+                return mid;
             }
 
             if (cmp < 0)
@@ -374,6 +2624,17 @@ public class FileCache implements CacheFacade {
         return -(low + 1);
     }
 
+    /**
+     * compares the hash of the row at the offset with the given one as two unsigned longs
+     */
+    private static int compareHash(ByteBuffer buffer, int offset, byte[] hash) {
+        int cmp = Long.compareUnsigned(buffer.getLong(offset), bytesToLong(hash, 0));
+        if (cmp != 0) {
+            return cmp;
+        }
+        return Long.compareUnsigned(buffer.getLong(offset + Long.BYTES), bytesToLong(hash, Long.BYTES));
+    }
+
     private static int bytesToInt(byte[] bytes) {
         int v = 0;
         for (int i = 0; i < Integer.BYTES; i++) {
@@ -383,18 +2644,15 @@ public class FileCache implements CacheFacade {
         return v;
     }
 
-    private static void intToBytes(int v, byte[] bytes) {
-        for (int i = 0; i < Integer.BYTES; i++) {
-            bytes[Integer.BYTES - 1 - i] = (byte) (v & 0xFF);
-            v >>= 8;
-        }
+    private static long bytesToLong(byte[] bytes) {
+        return bytesToLong(bytes, 0);
     }
 
-    private static long bytesToLong(byte[] bytes) {
+    private static long bytesToLong(byte[] bytes, int offset) {
         long v = 0;
         for (int i = 0; i < Long.BYTES; i++) {
             v <<= Byte.SIZE;
-            v |= Byte.toUnsignedLong(bytes[i]);
+            v |= Byte.toUnsignedLong(bytes[offset + i]);
         }
         return v;
     }
@@ -0,0 +1,78 @@
+package indi.sophronia.tools.cache.impl;
+
+/**
+ * count-min sketch of 4-bit counters estimating how often keys were used recently,
+ * for the admission policy of {@link DefaultMemoryCache}.
+ * every counter is halved once the number of increments reaches ten times the capacity,
+ * so that keys popular long ago fade out. not thread safe
+ */
+final class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /**
+     * each long holds sixteen counters
+     */
+    private final long[] table;
+
+    private final int sampleSize;
+
+    private int size;
+
+    FrequencySketch(long capacity) {
+        int counters = (int) Math.min(Math.max(capacity, 64), 1 << 26);
+        this.table = new long[Integer.highestOneBit(counters - 1) << 1];
+        this.sampleSize = (int) Math.min(10 * Math.max(capacity, 64), Integer.MAX_VALUE);
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xF));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = counterOffset(hash, i);
+            if (((table[index] >>> shift) & 0xF) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    /**
+     * each row uses its own counter among the sixteen in the long
+     */
+    private static int counterOffset(int hash, int i) {
+        return (((hash >>> (i << 3)) & 3) << 2 | i) << 2;
+    }
+}
@@ -0,0 +1,343 @@
+package indi.sophronia.tools.cache.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * membership structure for the negative lookup fast path of {@link FileCache}.
+ * keys are identified by their 128-bit md5 digest, false positives are allowed, false negatives are not
+ */
+abstract class KeyFilter {
+    static final String BLOOM = "bloom";
+    static final String HASH = "hash";
+
+    // filter file -> magic int, type int, index_count int, data_size long, body
+    private static final int MAGIC = 0x4B56464C;
+    private static final int HEADER_SIZE = Integer.BYTES * 3 + Long.BYTES;
+
+    private static final int TYPE_PASS_THROUGH = 0;
+    private static final int TYPE_BLOOM = 1;
+    private static final int TYPE_HASH = 2;
+
+    /**
+     * stands in while the filter is rebuilt, every lookup falls through to the index.
+     * it has no body, and a file written from it is never read back as a filter
+     */
+    static final KeyFilter PASS_THROUGH = new KeyFilter() {
+        @Override
+        void add(long h1, long h2) {
+        }
+
+        @Override
+        boolean mightContain(long h1, long h2) {
+            return true;
+        }
+
+        @Override
+        int type() {
+            return TYPE_PASS_THROUGH;
+        }
+
+        @Override
+        void writeBody(FileChannel fileChannel) {
+        }
+    };
+
+    /**
+     * @param capacity number of keys a bloom filter is sized for, the hash set grows on demand instead
+     * @param keys     number of keys about to be added
+     */
+    static KeyFilter create(String type, int capacity, int keys) {
+        if (HASH.equals(type)) {
+            return new LongHashSet(keys);
+        } else if (BLOOM.equals(type)) {
+            return new Bloom(Math.max(capacity, 2 * keys));
+        }
+        throw new IllegalArgumentException("unsupported key filter " + type);
+    }
+
+    /**
+     * the data file only grows until a compaction, which writes a new filter,
+     * so a filter written for a larger data file belongs to files replaced since
+     *
+     * @return null if the file is missing, of another type,
+     * or written for a data file larger than the current one
+     */
+    static KeyFilter read(Path path, String type, long dataSize) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(fileChannel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                return null;
+            }
+
+            int fileType = header.getInt();
+            header.getInt();
+            if (header.getLong() > dataSize) {
+                return null;
+            }
+
+            if (fileType == TYPE_BLOOM && BLOOM.equals(type)) {
+                return Bloom.readBody(fileChannel, HEADER_SIZE);
+            } else if (fileType == TYPE_HASH && HASH.equals(type)) {
+                return LongHashSet.readBody(fileChannel, HEADER_SIZE);
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * the state of the cache files is stored along, so that a filter of replaced files is never loaded
+     */
+    void write(Path path, int indexCount, long dataSize) throws IOException {
+        Path tempPath = Path.of(path + ".tmp");
+        try (FileChannel fileChannel = FileChannel.open(
+                tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(type()).putInt(indexCount).putLong(dataSize).flip();
+            writeFully(fileChannel, header);
+            writeBody(fileChannel);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void add(byte[] digest) {
+        add(high(digest), low(digest));
+    }
+
+    boolean mightContain(byte[] digest) {
+        return mightContain(high(digest), low(digest));
+    }
+
+    abstract void add(long h1, long h2);
+
+    abstract boolean mightContain(long h1, long h2);
+
+    abstract int type();
+
+    abstract void writeBody(FileChannel fileChannel) throws IOException;
+
+    private static long high(byte[] digest) {
+        long v = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            v = (v << Byte.SIZE) | Byte.toUnsignedLong(digest[i]);
+        }
+        return v;
+    }
+
+    private static long low(byte[] digest) {
+        long v = 0;
+        for (int i = Long.BYTES; i < 2 * Long.BYTES; i++) {
+            v = (v << Byte.SIZE) | Byte.toUnsignedLong(digest[i]);
+        }
+        return v;
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("fail to read key filter file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+
+    /**
+     * bloom filter kept in a direct buffer, about 10 bits per key for a 1% false positive rate.
+     * probes are derived from the two halves of the digest by double hashing
+     */
+    static final class Bloom extends KeyFilter {
+        private static final double FALSE_POSITIVE_RATE = 0.01;
+
+        private final ByteBuffer bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        private Bloom(int expectedKeys) {
+            long n = Math.max(expectedKeys, 1024);
+            long m = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min((m + Long.SIZE - 1) / Long.SIZE, Integer.MAX_VALUE / Long.BYTES);
+            this.bits = ByteBuffer.allocateDirect(words * Long.BYTES);
+            this.bitCount = (long) words * Long.SIZE;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        }
+
+        private Bloom(ByteBuffer bits, int hashCount) {
+            this.bits = bits;
+            this.bitCount = (long) bits.capacity() * Byte.SIZE;
+            this.hashCount = hashCount;
+        }
+
+        @Override
+        synchronized void add(long h1, long h2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+                int word = (int) (bit >>> 6) * Long.BYTES;
+                bits.putLong(word, bits.getLong(word) | (1L << bit));
+            }
+        }
+
+        @Override
+        boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+                int word = (int) (bit >>> 6) * Long.BYTES;
+                if ((bits.getLong(word) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int type() {
+            return TYPE_BLOOM;
+        }
+
+        // body -> hash_count int, byte_count int, bits
+        @Override
+        synchronized void writeBody(FileChannel fileChannel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+            header.putInt(hashCount).putInt(bits.capacity()).flip();
+            writeFully(fileChannel, header);
+            writeFully(fileChannel, bits.duplicate().clear());
+        }
+
+        private static Bloom readBody(FileChannel fileChannel, long position) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(fileChannel, header, position);
+            int hashCount = header.getInt(0);
+            int byteCount = header.getInt(Integer.BYTES);
+
+            ByteBuffer bits = ByteBuffer.allocateDirect(byteCount);
+            readFully(fileChannel, bits, position + header.capacity());
+            return new Bloom(bits, hashCount);
+        }
+    }
+
+
+    /**
+     * exact set of the high halves of the digests, open addressing with linear probing over a long array.
+     * zero marks an empty slot, so a zero hash is stored as one
+     */
+    static final class LongHashSet extends KeyFilter {
+        private volatile long[] table;
+        private int size;
+
+        private LongHashSet(int expectedKeys) {
+            this.table = new long[tableSizeFor(expectedKeys)];
+        }
+
+        private LongHashSet(long[] table, int size) {
+            this.table = table;
+            this.size = size;
+        }
+
+        private static int tableSizeFor(int keys) {
+            int capacity = Integer.highestOneBit(Math.max(keys, 512) * 2 - 1) << 1;
+            return Math.max(capacity, 1024);
+        }
+
+        @Override
+        synchronized void add(long h1, long h2) {
+            long hash = h1 == 0 ? 1 : h1;
+            if (!insert(table, hash)) {
+                return;
+            }
+
+            size++;
+            if (size * 2L > table.length) {
+                long[] resized = new long[table.length * 2];
+                for (long value : table) {
+                    if (value != 0) {
+                        insert(resized, value);
+                    }
+                }
+                table = resized;
+            }
+        }
+
+        private static boolean insert(long[] table, long hash) {
+            int mask = table.length - 1;
+            int slot = mix(hash) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == hash) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = hash;
+            return true;
+        }
+
+        @Override
+        boolean mightContain(long h1, long h2) {
+            long hash = h1 == 0 ? 1 : h1;
+            long[] table = this.table;
+            int mask = table.length - 1;
+            int slot = mix(hash) & mask;
+            long value;
+            while ((value = table[slot]) != 0) {
+                if (value == hash) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        private static int mix(long hash) {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        int type() {
+            return TYPE_HASH;
+        }
+
+        // body -> size int, table_length int, table longs
+        @Override
+        synchronized void writeBody(FileChannel fileChannel) throws IOException {
+            ByteBuffer body = ByteBuffer.allocate(2 * Integer.BYTES + table.length * Long.BYTES);
+            body.putInt(size).putInt(table.length);
+            body.asLongBuffer().put(table);
+            body.clear();
+            writeFully(fileChannel, body);
+        }
+
+        private static LongHashSet readBody(FileChannel fileChannel, long position) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(fileChannel, header, position);
+            int size = header.getInt(0);
+            int length = header.getInt(Integer.BYTES);
+
+            ByteBuffer body = ByteBuffer.allocate(length * Long.BYTES);
+            readFully(fileChannel, body, position + header.capacity());
+            long[] table = new long[length];
+            body.flip();
+            body.asLongBuffer().get(table);
+            return new LongHashSet(table, size);
+        }
+    }
+}
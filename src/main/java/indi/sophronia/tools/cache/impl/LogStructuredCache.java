@@ -0,0 +1,736 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
+import indi.sophronia.tools.util.Rethrow;
+import indi.sophronia.tools.util.GlobPattern;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * append-only storage engine in the style of bitcask.
+ * every write is appended to the active segment and the latest location of each key
+ * is kept in memory, so both reads and writes cost a single positioned io.
+ * sealed segments get a hint file, which lets startup rebuild the key directory
+ * without scanning the values, and are compacted in the background once enough of them is dead
+ */
+public class LogStructuredCache implements CacheFacade {
+    public LogStructuredCache(String fileName) {
+        this.fileName = fileName;
+    }
+
+    private static class Segment {
+        private final int id;
+        private final FileChannel channel;
+
+        /**
+         * bytes of the records superseded, invalidated or found expired
+         */
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength;
+        private final long expireAt;
+
+        private Location(Segment segment, long offset, int keyLength, int valueLength, long expireAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.expireAt = expireAt;
+        }
+
+        private boolean expired(long timestamp) {
+            return expireAt > 0 && expireAt < timestamp;
+        }
+
+        private long size() {
+            return DataSize.recordHeaderSize + keyLength + Math.max(valueLength, 0);
+        }
+    }
+
+    private final String fileName;
+
+    private final SegmentedMap<Location> keyDir = new SegmentedMap<>();
+
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+    private final Lock writeLock = new ReentrantLock();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor();
+
+    private long segmentSize = DataSize.defaultSegmentSize;
+
+    private double compactionThreshold = 0.5;
+
+    /**
+     * guarded by the write lock
+     */
+    private Segment activeSegment;
+
+    private long activeSize;
+
+    private ByteArrayOutputStream activeHint;
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param compactionThreshold ratio of dead bytes in a sealed segment that triggers its compaction
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public Set<String> keys(String pattern) {
+        long timestamp = System.currentTimeMillis();
+        GlobPattern glob = GlobPattern.compile(pattern);
+        if (glob.isLiteral()) {
+            Set<String> set = new HashSet<>(1);
+            Location location = keyDir.get(pattern);
+            if (location != null && !location.expired(timestamp)) {
+                set.add(pattern);
+            }
+            return set;
+        }
+
+        Set<String> keys = new HashSet<>();
+        keyDir.forEach((key, location) -> {
+            if (!location.expired(timestamp) && glob.matches(key)) {
+                keys.add(key);
+            }
+        });
+        return keys;
+    }
+
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        long timestamp = System.currentTimeMillis();
+        GlobPattern glob = GlobPattern.compile(pattern);
+        return keyDir.scan(cursor, (key, location) -> !location.expired(timestamp) && glob.matches(key), count);
+    }
+
+    @Override
+    public <T> void save(String key, T value, long expireMillis) {
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        append(Map.of(key, value.toString()), expireAt);
+    }
+
+    @Override
+    public <T> void savePersist(String key, T value) {
+        save(key, value, 0L);
+    }
+
+    @Override
+    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+        if (data.isEmpty()) {
+            return;
+        }
+
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        Map<String, String> values = new HashMap<>(data.size());
+        data.forEach((key, value) -> values.put(key, value.toString()));
+        append(values, expireAt);
+    }
+
+    @Override
+    public <T> void saveBatchPersist(Map<String, T> data) {
+        saveBatch(data, 0L);
+    }
+
+    @Override
+    public long expireAt(String key) {
+        Location location = keyDir.get(key);
+        if (location == null || location.expired(System.currentTimeMillis())) {
+            return -1;
+        }
+        return location.expireAt;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T load(String key) {
+        while (true) {
+            Location location = keyDir.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            if (location.expired(System.currentTimeMillis())) {
+                if (keyDir.remove(key, location)) {
+                    retire(location);
+                }
+                return null;
+            }
+
+            try {
+                ByteBuffer valueContainer = ByteBuffer.allocate(location.valueLength);
+                readFully(
+                        location.segment.channel,
+                        valueContainer,
+                        location.offset + DataSize.recordHeaderSize + location.keyLength
+                );
+                return (T) new String(valueContainer.array(), StandardCharsets.UTF_8);
+            } catch (ClosedChannelException e) {
+                // the segment has been compacted meanwhile, the key has moved to the new file
+                if (keyDir.get(key) == location) {
+                    throw Rethrow.rethrow(e);
+                }
+            } catch (IOException e) {
+                throw Rethrow.rethrow(e);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String key) {
+        invalidateBatch(List.of(key));
+    }
+
+    @Override
+    public void invalidateBatch(Collection<String> keys) {
+        Map<String, String> tombstones = new HashMap<>(keys.size());
+        for (String key : keys) {
+            if (keyDir.containsKey(key)) {
+                tombstones.put(key, null);
+            }
+        }
+        if (!tombstones.isEmpty()) {
+            append(tombstones, 0L);
+        }
+    }
+
+
+    /**
+     * File IO
+     */
+    private static class DataSize {
+        static final long defaultSegmentSize = 64L << 20;
+
+        // record -> expire_at long, key_length int, value_length int, crc int, key text, value text.
+        // the crc32c covers the other header fields, the key and the value
+        static final int recordHeaderSize = Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+        static final int recordCrcOffset = Long.BYTES + Integer.BYTES + Integer.BYTES;
+        static final int tombstone = -1;
+
+        // hint file -> covered_length long, hint rows
+        // hint row -> expire_at long, key_length int, value_length int, offset long, key text
+        static final int hintHeaderSize = Long.BYTES;
+        static final int hintRowHeaderSize = Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+        static final String segmentSuffix = ".log.kvdb";
+        static final String hintSuffix = ".hint.kvdb";
+        static final String compactSuffix = ".compact";
+
+        // entries imported from the legacy files at once
+        static final int migrateBatchSize = 1024;
+    }
+
+    @Override
+    public void init() {
+        try {
+            Path path = Path.of(fileName).toAbsolutePath();
+            Files.createDirectories(path.getParent());
+
+            String prefix = path.getFileName().toString() + ".";
+            List<Integer> ids = new ArrayList<>();
+            try (Stream<Path> files = Files.list(path.getParent())) {
+                files.map(file -> file.getFileName().toString()).
+                        filter(name -> name.startsWith(prefix) && name.endsWith(DataSize.segmentSuffix)).
+                        forEach(name -> {
+                            String id = name.substring(prefix.length(), name.length() - DataSize.segmentSuffix.length());
+                            try {
+                                ids.add(Integer.parseInt(id));
+                            } catch (NumberFormatException ignored) {
+                            }
+                        });
+            }
+            ids.sort(Comparator.naturalOrder());
+
+            writeLock.lock();
+            try {
+                for (int i = 0; i < ids.size(); i++) {
+                    int id = ids.get(i);
+                    // a compaction killed before its rename leaves the copy behind
+                    Files.deleteIfExists(Path.of(segmentPath(id) + DataSize.compactSuffix));
+
+                    boolean active = i == ids.size() - 1;
+                    FileChannel channel = active ?
+                            FileChannel.open(segmentPath(id), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                            FileChannel.open(segmentPath(id), StandardOpenOption.READ);
+                    Segment segment = new Segment(id, channel);
+                    segments.put(id, segment);
+                    loadSegment(segment, active);
+                }
+
+                if (ids.isEmpty()) {
+                    openSegment(0);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (ids.isEmpty()) {
+                migrateLegacyFiles();
+            } else {
+                scheduleCompaction();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        writeLock.lock();
+        try {
+            activeSegment.channel.force(false);
+            writeHint(activeSegment.id, activeSize, activeHint);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * imports the sorted index files written by {@link FileCache}, each entry keeps its expiration
+     */
+    private void migrateLegacyFiles() {
+        if (!Files.exists(Path.of(fileName + ".index.kvdb")) ||
+                !Files.exists(Path.of(fileName + ".data.kvdb"))) {
+            return;
+        }
+
+        FileCache legacy = new FileCache(fileName);
+        legacy.init();
+
+        Map<Long, Map<String, String>> batches = new HashMap<>();
+        int[] batchSize = new int[1];
+        legacy.forEach((key, value, expireAt) -> {
+            batches.computeIfAbsent(expireAt, k -> new HashMap<>()).put(key, value);
+            if (++batchSize[0] >= DataSize.migrateBatchSize) {
+                batches.forEach((batchExpireAt, batch) -> append(batch, batchExpireAt));
+                batches.clear();
+                batchSize[0] = 0;
+            }
+        });
+        batches.forEach((batchExpireAt, batch) -> append(batch, batchExpireAt));
+        legacy.destroy();
+    }
+
+    private Path segmentPath(int id) {
+        return Path.of(fileName + "." + id + DataSize.segmentSuffix);
+    }
+
+    private Path hintPath(int id) {
+        return Path.of(fileName + "." + id + DataSize.hintSuffix);
+    }
+
+    /**
+     * should be called with the write lock held
+     */
+    private void openSegment(int id) throws IOException {
+        FileChannel channel = FileChannel.open(
+                segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        activeSegment = new Segment(id, channel);
+        segments.put(id, activeSegment);
+        activeSize = 0;
+        activeHint = new ByteArrayOutputStream();
+    }
+
+    /**
+     * rebuilds the key directory from the hint file of the segment,
+     * and scans whatever part of the segment the hint does not cover.
+     * a torn or corrupted record ends the scan and is cut off with everything after it
+     */
+    private void loadSegment(Segment segment, boolean active) throws IOException {
+        ByteArrayOutputStream hint = new ByteArrayOutputStream();
+        long timestamp = System.currentTimeMillis();
+        FileChannel channel = segment.channel;
+        long size = channel.size();
+
+        long covered = 0;
+        Path hintPath = hintPath(segment.id);
+        if (Files.exists(hintPath)) {
+            ByteBuffer hintContent = ByteBuffer.wrap(Files.readAllBytes(hintPath));
+            if (hintContent.remaining() >= DataSize.hintHeaderSize && hintContent.getLong() <= size) {
+                covered = hintContent.getLong(0);
+                while (hintContent.remaining() >= DataSize.hintRowHeaderSize) {
+                    long expireAt = hintContent.getLong();
+                    int keyLength = hintContent.getInt();
+                    int valueLength = hintContent.getInt();
+                    long offset = hintContent.getLong();
+                    byte[] keyBytes = new byte[keyLength];
+                    hintContent.get(keyBytes);
+
+                    apply(new String(keyBytes, StandardCharsets.UTF_8),
+                            new Location(segment, offset, keyLength, valueLength, expireAt), timestamp);
+                    writeHintRow(hint, keyBytes, offset, valueLength, expireAt);
+                }
+            }
+        }
+
+        ByteBuffer recordHeader = ByteBuffer.allocate(DataSize.recordHeaderSize);
+        long offset = covered;
+        while (offset + DataSize.recordHeaderSize <= size) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, offset);
+            long expireAt = recordHeader.getLong(0);
+            int keyLength = recordHeader.getInt(Long.BYTES);
+            int valueLength = recordHeader.getInt(Long.BYTES + Integer.BYTES);
+
+            long next = offset + DataSize.recordHeaderSize + keyLength + Math.max(valueLength, 0);
+            if (keyLength < 0 || valueLength < DataSize.tombstone || next > size) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate((int) (next - offset - DataSize.recordHeaderSize));
+            readFully(channel, body, offset + DataSize.recordHeaderSize);
+            if (checksum(recordHeader, body.array()) != recordHeader.getInt(DataSize.recordCrcOffset)) {
+                break;
+            }
+            byte[] keyBytes = Arrays.copyOf(body.array(), keyLength);
+
+            apply(new String(keyBytes, StandardCharsets.UTF_8),
+                    new Location(segment, offset, keyLength, valueLength, expireAt), timestamp);
+            writeHintRow(hint, keyBytes, offset, valueLength, expireAt);
+            offset = next;
+        }
+
+        if (offset < size) {
+            // torn write at the tail, left by a crash during an append
+            if (active) {
+                channel.truncate(offset);
+            } else {
+                try (FileChannel writable = FileChannel.open(segmentPath(segment.id), StandardOpenOption.WRITE)) {
+                    writable.truncate(offset);
+                }
+            }
+        }
+
+        if (active) {
+            activeSegment = segment;
+            activeSize = offset;
+            activeHint = hint;
+        } else if (offset > covered) {
+            writeHint(segment.id, offset, hint);
+        }
+    }
+
+    private void apply(String key, Location location, long timestamp) {
+        if (location.valueLength == DataSize.tombstone || location.expired(timestamp)) {
+            retire(keyDir.remove(key));
+            if (location.valueLength != DataSize.tombstone) {
+                retire(location);
+            }
+        } else {
+            retire(keyDir.put(key, location));
+        }
+    }
+
+    /**
+     * counts the record of a location no longer in the key directory as dead.
+     * tombstones are never counted, they are kept by compactions as long as older segments exist
+     */
+    private static void retire(Location location) {
+        if (location != null) {
+            location.segment.deadBytes.addAndGet(location.size());
+        }
+    }
+
+    /**
+     * appends the values as one gathered write, null values are written as tombstones
+     */
+    private void append(Map<String, String> values, long expireAt) {
+        writeLock.lock();
+        try {
+            if (activeSize >= segmentSize) {
+                // the channel stays open for the lookups of the sealed segment
+                activeSegment.channel.force(false);
+                writeHint(activeSegment.id, activeSize, activeHint);
+                openSegment(activeSegment.id + 1);
+                scheduleCompaction();
+            }
+
+            ByteBuffer[] buffers = new ByteBuffer[values.size() * 3];
+            String[] keys = new String[values.size()];
+            Location[] locations = new Location[values.size()];
+
+            long offset = activeSize;
+            int i = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] valueBytes = entry.getValue() == null ?
+                        new byte[0] : entry.getValue().getBytes(StandardCharsets.UTF_8);
+                int valueLength = entry.getValue() == null ? DataSize.tombstone : valueBytes.length;
+
+                buffers[3 * i] = recordHeader(expireAt, keyBytes, valueBytes, valueLength);
+                buffers[3 * i + 1] = ByteBuffer.wrap(keyBytes);
+                buffers[3 * i + 2] = ByteBuffer.wrap(valueBytes);
+                keys[i] = entry.getKey();
+                locations[i] = new Location(activeSegment, offset, keyBytes.length, valueLength, expireAt);
+
+                writeHintRow(activeHint, keyBytes, offset, valueLength, expireAt);
+                offset += DataSize.recordHeaderSize + keyBytes.length + valueBytes.length;
+                i++;
+            }
+
+            FileChannel channel = activeSegment.channel;
+            channel.position(activeSize);
+            long remaining = offset - activeSize;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            activeSize = offset;
+
+            long timestamp = System.currentTimeMillis();
+            for (int j = 0; j < keys.length; j++) {
+                apply(keys[j], locations[j], timestamp);
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static ByteBuffer recordHeader(long expireAt, byte[] keyBytes, byte[] valueBytes, int valueLength) {
+        ByteBuffer recordHeader = ByteBuffer.allocate(DataSize.recordHeaderSize);
+        recordHeader.putLong(expireAt).putInt(keyBytes.length).putInt(valueLength);
+        CRC32C crc = new CRC32C();
+        crc.update(recordHeader.array(), 0, DataSize.recordCrcOffset);
+        crc.update(keyBytes);
+        crc.update(valueBytes);
+        return recordHeader.putInt((int) crc.getValue()).flip();
+    }
+
+    /**
+     * @param body key and value of the record
+     */
+    private static int checksum(ByteBuffer recordHeader, byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(recordHeader.array(), 0, DataSize.recordCrcOffset);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private void scheduleCompaction() {
+        try {
+            compactor.execute(() -> {
+                try {
+                    compactIfNeeded();
+                } catch (Exception e) {
+                    System.err.println("fail to compact cache segment: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * runs on the compactor thread, compacts every sealed segment whose dead bytes reach the threshold
+     */
+    private void compactIfNeeded() throws IOException {
+        List<Segment> sealed = new ArrayList<>(segments.values());
+        writeLock.lock();
+        try {
+            sealed.remove(activeSegment);
+        } finally {
+            writeLock.unlock();
+        }
+        sealed.sort(Comparator.comparingInt(segment -> segment.id));
+
+        for (int i = 0; i < sealed.size(); i++) {
+            Segment segment = sealed.get(i);
+            long size = segment.channel.size();
+            if (size > 0 && segment.deadBytes.get() >= size * compactionThreshold) {
+                compact(segment, i == 0);
+            }
+        }
+    }
+
+    /**
+     * copies the live records of a sealed segment into a new file which replaces it under the same id,
+     * so that the order of the segments is kept. a dead record whose key has no live location is copied
+     * as a tombstone, which keeps shadowing the older segments, unless the segment is the oldest one.
+     * lookups still reading the replaced file retry with the new location.
+     * runs on the compactor thread
+     */
+    private void compact(Segment segment, boolean oldest) throws IOException {
+        Path compactPath = Path.of(segmentPath(segment.id) + DataSize.compactSuffix);
+        ByteArrayOutputStream hint = new ByteArrayOutputStream();
+        List<String> movedKeys = new ArrayList<>();
+        List<Location> movedFrom = new ArrayList<>();
+        List<long[]> movedTo = new ArrayList<>();
+        Set<String> tombstones = new HashSet<>();
+
+        long compactedSize;
+        try (FileChannel compactChannel = FileChannel.open(
+                compactPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            FileChannel channel = segment.channel;
+            long size = channel.size();
+            long timestamp = System.currentTimeMillis();
+
+            ByteBuffer recordHeader = ByteBuffer.allocate(DataSize.recordHeaderSize);
+            long offset = 0;
+            long output = 0;
+            while (offset + DataSize.recordHeaderSize <= size) {
+                recordHeader.clear();
+                readFully(channel, recordHeader, offset);
+                int keyLength = recordHeader.getInt(Long.BYTES);
+                int valueLength = recordHeader.getInt(Long.BYTES + Integer.BYTES);
+                long recordSize = DataSize.recordHeaderSize + keyLength + Math.max(valueLength, 0);
+
+                ByteBuffer keyContainer = ByteBuffer.allocate(keyLength);
+                readFully(channel, keyContainer, offset + DataSize.recordHeaderSize);
+                byte[] keyBytes = keyContainer.array();
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+                Location current = keyDir.get(key);
+                boolean self = current != null && current.segment == segment && current.offset == offset;
+                if (self && current.expired(timestamp) && keyDir.remove(key, current)) {
+                    retire(current);
+                    current = null;
+                    self = false;
+                }
+
+                if (self) {
+                    ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+                    readFully(channel, record, offset);
+                    writeFully(compactChannel, record.flip());
+
+                    movedKeys.add(key);
+                    movedFrom.add(current);
+                    movedTo.add(new long[]{output, recordSize});
+                    writeHintRow(hint, keyBytes, output, valueLength, current.expireAt);
+                    output += recordSize;
+                } else if (!oldest && current == null && tombstones.add(key)) {
+                    byte[] empty = new byte[0];
+                    writeFully(compactChannel, recordHeader(0L, keyBytes, empty, DataSize.tombstone));
+                    writeFully(compactChannel, ByteBuffer.wrap(keyBytes));
+                    writeHintRow(hint, keyBytes, output, DataSize.tombstone, 0L);
+                    output += DataSize.recordHeaderSize + keyLength;
+                }
+                offset += recordSize;
+            }
+
+            compactChannel.force(true);
+            compactedSize = output;
+        }
+
+        Path segmentPath = segmentPath(segment.id);
+        Files.deleteIfExists(hintPath(segment.id));
+        if (compactedSize == 0) {
+            segments.remove(segment.id);
+            Files.delete(segmentPath);
+            Files.delete(compactPath);
+            segment.channel.close();
+            return;
+        }
+
+        // without a hint in between, the next startup scans whichever file is in place
+        Files.move(compactPath, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeHint(segment.id, compactedSize, hint);
+
+        Segment compacted = new Segment(segment.id, FileChannel.open(segmentPath, StandardOpenOption.READ));
+        segments.put(segment.id, compacted);
+        for (int i = 0; i < movedKeys.size(); i++) {
+            Location from = movedFrom.get(i);
+            long[] to = movedTo.get(i);
+            Location location = new Location(compacted, to[0], from.keyLength, from.valueLength, from.expireAt);
+            if (!keyDir.replace(movedKeys.get(i), from, location)) {
+                // written or invalidated during the copy
+                compacted.deadBytes.addAndGet(to[1]);
+            }
+        }
+        segment.channel.close();
+    }
+
+    private static void writeHintRow(ByteArrayOutputStream hint, byte[] keyBytes,
+                                     long offset, int valueLength, long expireAt) {
+        ByteBuffer row = ByteBuffer.allocate(DataSize.hintRowHeaderSize);
+        row.putLong(expireAt).putInt(keyBytes.length).putInt(valueLength).putLong(offset);
+        hint.writeBytes(row.array());
+        hint.writeBytes(keyBytes);
+    }
+
+    private void writeHint(int id, long covered, ByteArrayOutputStream rows) throws IOException {
+        Path hintPath = hintPath(id);
+        Path tempPath = Path.of(hintPath + ".tmp");
+        try (FileChannel channel = FileChannel.open(
+                tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            ByteBuffer header = ByteBuffer.allocate(DataSize.hintHeaderSize);
+            header.putLong(covered).flip();
+            ByteBuffer content = ByteBuffer.wrap(rows.toByteArray());
+            while (header.hasRemaining() || content.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, content});
+            }
+        }
+        Files.move(tempPath, hintPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("fail to read cache file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
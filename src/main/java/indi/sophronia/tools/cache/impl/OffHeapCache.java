@@ -0,0 +1,561 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
+import indi.sophronia.tools.util.GlobPattern;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * memory tier keeping utf-8 keys and values out of the java heap, so that a large population
+ * does not lengthen old generation collections. values are stored as their string form, like the file tiers.
+ * records are appended to direct buffer slabs used as a ring, once the ring is full the oldest slab
+ * is recycled with all its records. an open addressing table of primitive arrays finds the latest record of a key.
+ * reads missing here go to the upstream tier if one is set, writes go through to it
+ */
+public class OffHeapCache implements CacheFacade {
+    private static final long EXPIRE_FOR_BUFFER = TimeUnit.SECONDS.toMillis(5);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private CacheFacade upstream;
+
+    private int slabSize = DataSize.defaultSlabSize;
+
+    private long capacity = DataSize.defaultCapacity;
+
+    /**
+     * guarded by the lock
+     */
+    private ByteBuffer[] slabs;
+
+    /**
+     * bytes written into each slab
+     */
+    private int[] slabLimits;
+
+    private int activeSlab;
+
+    private int activeOffset;
+
+    /**
+     * index slots, the address of the record and the hash of its key
+     */
+    private long[] addresses;
+
+    private int[] hashes;
+
+    private int size;
+
+    /**
+     * slots not empty, tombstones included
+     */
+    private int used;
+
+    public void setUpstream(CacheFacade upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * @param slabSize bytes per direct buffer, records larger than a slab are not kept
+     */
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * @param capacity bytes of all slabs, allocated as they are filled.
+     *                 the ring needs two slabs, below twice the slab size the slabs are made smaller
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    private static class DataSize {
+        static final int defaultSlabSize = 4 << 20;
+        static final long defaultCapacity = 64L << 20;
+
+        // record -> hash int, key_length int, value_length int, expire_at long, key text, value text
+        static final int recordHashOffset = 0;
+        static final int recordKeyLengthOffset = Integer.BYTES;
+        static final int recordValueLengthOffset = 2 * Integer.BYTES;
+        static final int recordExpireAtOffset = 3 * Integer.BYTES;
+        static final int recordHeaderSize = 3 * Integer.BYTES + Long.BYTES;
+
+        // index slot -> address of the record, slab << 32 | offset
+        static final long empty = -1;
+        static final long tombstone = -2;
+        static final int initialSlots = 1024;
+    }
+
+    @Override
+    public void init() {
+        lock.writeLock().lock();
+        try {
+            if (capacity / 2 < DataSize.recordHeaderSize) {
+                throw new IllegalArgumentException("capacity too small for two slabs: " + capacity);
+            }
+            slabSize = (int) Math.min(slabSize, capacity / 2);
+            slabs = new ByteBuffer[(int) Math.min(capacity / slabSize, Integer.MAX_VALUE)];
+            slabLimits = new int[slabs.length];
+            slabs[0] = ByteBuffer.allocateDirect(slabSize);
+            activeSlab = 0;
+            activeOffset = 0;
+            resetIndex(DataSize.initialSlots);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (upstream != null) {
+            upstream.init();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            // the direct buffers are freed once unreachable
+            Arrays.fill(slabs, null);
+            resetIndex(DataSize.initialSlots);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (upstream != null) {
+            upstream.destroy();
+        }
+    }
+
+    @Override
+    public Set<String> keys(String pattern) {
+        long timestamp = System.currentTimeMillis();
+        GlobPattern glob = GlobPattern.compile(pattern);
+        Set<String> keys = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            if (glob.isLiteral()) {
+                byte[] keyBytes = pattern.getBytes(StandardCharsets.UTF_8);
+                int slot = find(keyBytes, hash(pattern));
+                if (slot >= 0 && !expired(addresses[slot], timestamp)) {
+                    keys.add(pattern);
+                }
+            } else {
+                for (long address : addresses) {
+                    if (address >= 0 && !expired(address, timestamp)) {
+                        String key = readKey(address);
+                        if (glob.matches(key)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (upstream != null) {
+            keys.addAll(upstream.keys(pattern));
+        }
+        return keys;
+    }
+
+    /**
+     * writes go through, so upstream holds every key kept here.
+     * without upstream the cursor is a position in the order of the reversed key hashes. the home slots
+     * follow that order in reversed bit order, as redis walks them, so a table grown or shrunk between two pages
+     * skips no keys, and a page stops within a home slot once count keys are examined.
+     * keys sharing the last position go along, so a page only holds more than count keys on a full hash collision
+     */
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        if (upstream != null) {
+            return upstream.scan(cursor, pattern, count);
+        }
+
+        long timestamp = System.currentTimeMillis();
+        GlobPattern glob = GlobPattern.compile(pattern);
+        List<String> keys = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            int mask = addresses.length - 1;
+            long span = 1L << (Integer.SIZE - Integer.bitCount(mask));
+            long position = cursor;
+            int examined = 0;
+            while (position < 1L << Integer.SIZE && examined < Math.max(count, 1)) {
+                // the keys of a home slot are in the run of occupied slots starting from it
+                int home = Integer.reverse((int) position) & mask;
+                List<Integer> candidates = new ArrayList<>();
+                for (int slot = home; addresses[slot] != DataSize.empty; slot = (slot + 1) & mask) {
+                    if (addresses[slot] >= 0 && (hashes[slot] & mask) == home &&
+                            scanPosition(hashes[slot]) >= position) {
+                        candidates.add(slot);
+                    }
+                }
+                candidates.sort(Comparator.comparingLong(slot -> scanPosition(hashes[slot])));
+
+                int taken = 0;
+                while (taken < candidates.size() && (examined < Math.max(count, 1) ||
+                        hashes[candidates.get(taken)] == hashes[candidates.get(taken - 1)])) {
+                    long address = addresses[candidates.get(taken++)];
+                    examined++;
+                    if (!expired(address, timestamp)) {
+                        String key = readKey(address);
+                        if (glob.matches(key)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+                position = taken < candidates.size() ?
+                        scanPosition(hashes[candidates.get(taken)]) : (position / span + 1) * span;
+            }
+            return new ScanPage(position < 1L << Integer.SIZE ? position : 0, keys);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long scanPosition(int hash) {
+        return Integer.toUnsignedLong(Integer.reverse(hash));
+    }
+
+    @Override
+    public <T> void save(String key, T value, long expireMillis) {
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        saveLocally(Map.of(key, value), expireAt);
+        if (upstream != null) {
+            upstream.save(key, value, expireMillis);
+        }
+    }
+
+    @Override
+    public <T> void savePersist(String key, T value) {
+        save(key, value, 0L);
+    }
+
+    @Override
+    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+        long expireAt = expireMillis == 0 ?
+                0 : System.currentTimeMillis() + expireMillis;
+        saveLocally(data, expireAt);
+        if (upstream != null) {
+            upstream.saveBatch(data, expireMillis);
+        }
+    }
+
+    @Override
+    public <T> void saveBatchPersist(Map<String, T> data) {
+        saveBatch(data, 0L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T load(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash);
+            if (slot >= 0 && !expired(addresses[slot], System.currentTimeMillis())) {
+                return (T) readValue(addresses[slot]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (upstream == null) {
+            return null;
+        }
+
+        // buffers what upstream returns without writing it back, never beyond its expiration there
+        T value = upstream.load(key);
+        if (value == null) {
+            return null;
+        }
+        long expireAt = System.currentTimeMillis() + EXPIRE_FOR_BUFFER;
+        long upstreamExpireAt = upstream.expireAt(key);
+        if (upstreamExpireAt > 0) {
+            expireAt = Math.min(expireAt, upstreamExpireAt);
+        }
+        if (upstreamExpireAt >= 0) {
+            saveLocally(Map.of(key, value), expireAt);
+        }
+        return value;
+    }
+
+    /**
+     * writes go through, so upstream knows the expiration of what is buffered here
+     */
+    @Override
+    public long expireAt(String key) {
+        if (upstream != null) {
+            return upstream.expireAt(key);
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash);
+            if (slot < 0 || expired(addresses[slot], System.currentTimeMillis())) {
+                return -1;
+            }
+            return expireAtOf(addresses[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(String key) {
+        invalidateLocally(List.of(key));
+        if (upstream != null) {
+            upstream.invalidate(key);
+        }
+    }
+
+    @Override
+    public void invalidateBatch(Collection<String> keys) {
+        invalidateLocally(keys);
+        if (upstream != null) {
+            upstream.invalidateBatch(keys);
+        }
+    }
+
+    private <T> void saveLocally(Map<String, T> data, long expireAt) {
+        lock.writeLock().lock();
+        try {
+            data.forEach((key, value) -> put(key, value.toString(), expireAt));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void invalidateLocally(Collection<String> keys) {
+        lock.writeLock().lock();
+        try {
+            for (String key : keys) {
+                int slot = find(key.getBytes(StandardCharsets.UTF_8), hash(key));
+                if (slot >= 0) {
+                    removeSlot(slot);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * Slabs, should be called with the lock held
+     */
+    private void put(String key, String value, long expireAt) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+
+        long recordLength = (long) DataSize.recordHeaderSize + keyBytes.length + valueBytes.length;
+        if (recordLength > slabSize) {
+            // left to upstream, the previous value must not be served any longer
+            int slot = find(keyBytes, hash);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            return;
+        }
+
+        // allocating may recycle a slab and change the index, so the slot is looked up afterwards
+        long address = allocate((int) recordLength);
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        slab.putInt(offset + DataSize.recordHashOffset, hash);
+        slab.putInt(offset + DataSize.recordKeyLengthOffset, keyBytes.length);
+        slab.putInt(offset + DataSize.recordValueLengthOffset, valueBytes.length);
+        slab.putLong(offset + DataSize.recordExpireAtOffset, expireAt);
+        slab.put(offset + DataSize.recordHeaderSize, keyBytes);
+        slab.put(offset + DataSize.recordHeaderSize + keyBytes.length, valueBytes);
+
+        int slot = find(keyBytes, hash);
+        if (slot >= 0) {
+            addresses[slot] = address;
+        } else {
+            insertSlot(hash, address);
+        }
+    }
+
+    private long allocate(int length) {
+        if (activeOffset + length > slabSize) {
+            activeSlab = (activeSlab + 1) % slabs.length;
+            activeOffset = 0;
+            if (slabs[activeSlab] == null) {
+                slabs[activeSlab] = ByteBuffer.allocateDirect(slabSize);
+            } else {
+                recycle(activeSlab);
+            }
+        }
+
+        long address = (long) activeSlab << 32 | activeOffset;
+        activeOffset += length;
+        slabLimits[activeSlab] = activeOffset;
+        return address;
+    }
+
+    /**
+     * drops the index slots still pointing into the slab
+     */
+    private void recycle(int slabIndex) {
+        ByteBuffer slab = slabs[slabIndex];
+        int mask = addresses.length - 1;
+        int offset = 0;
+        while (offset < slabLimits[slabIndex]) {
+            long address = (long) slabIndex << 32 | offset;
+            int hash = slab.getInt(offset + DataSize.recordHashOffset);
+            for (int slot = hash & mask; addresses[slot] != DataSize.empty; slot = (slot + 1) & mask) {
+                if (addresses[slot] == address) {
+                    removeSlot(slot);
+                    break;
+                }
+            }
+
+            offset += DataSize.recordHeaderSize +
+                    slab.getInt(offset + DataSize.recordKeyLengthOffset) +
+                    slab.getInt(offset + DataSize.recordValueLengthOffset);
+        }
+        slabLimits[slabIndex] = 0;
+    }
+
+    private boolean expired(long address, long timestamp) {
+        long expireAt = expireAtOf(address);
+        return expireAt > 0 && expireAt < timestamp;
+    }
+
+    private long expireAtOf(long address) {
+        return slabs[slabOf(address)].getLong(offsetOf(address) + DataSize.recordExpireAtOffset);
+    }
+
+    private String readKey(long address) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        byte[] keyBytes = new byte[slab.getInt(offset + DataSize.recordKeyLengthOffset)];
+        slab.get(offset + DataSize.recordHeaderSize, keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private String readValue(long address) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        int keyLength = slab.getInt(offset + DataSize.recordKeyLengthOffset);
+        byte[] valueBytes = new byte[slab.getInt(offset + DataSize.recordValueLengthOffset)];
+        slab.get(offset + DataSize.recordHeaderSize + keyLength, valueBytes);
+        return new String(valueBytes, StandardCharsets.UTF_8);
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+
+    /**
+     * Index, linear probing over a power of two table kept at most three quarters used
+     */
+    private int find(byte[] keyBytes, int hash) {
+        int mask = addresses.length - 1;
+        for (int slot = hash & mask; addresses[slot] != DataSize.empty; slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if (address >= 0 && hashes[slot] == hash && keyEquals(address, keyBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        ByteBuffer slab = slabs[slabOf(address)];
+        int offset = offsetOf(address);
+        if (slab.getInt(offset + DataSize.recordKeyLengthOffset) != keyBytes.length) {
+            return false;
+        }
+
+        int keyOffset = offset + DataSize.recordHeaderSize;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (slab.get(keyOffset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the key should be absent
+     */
+    private void insertSlot(int hash, long address) {
+        if ((used + 1) * 4L > addresses.length * 3L) {
+            // grows while live slots fill half of the table, otherwise only the tombstones are cleared
+            int length = addresses.length;
+            while ((size + 1) * 2L > length) {
+                length <<= 1;
+            }
+            rehash(length);
+        }
+
+        int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (addresses[slot] == DataSize.empty) {
+            used++;
+        }
+        addresses[slot] = address;
+        hashes[slot] = hash;
+        size++;
+    }
+
+    private void removeSlot(int slot) {
+        addresses[slot] = DataSize.tombstone;
+        size--;
+    }
+
+    private void rehash(int length) {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        resetIndex(length);
+
+        int mask = length - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] >= 0) {
+                int slot = oldHashes[i] & mask;
+                while (addresses[slot] != DataSize.empty) {
+                    slot = (slot + 1) & mask;
+                }
+                addresses[slot] = oldAddresses[i];
+                hashes[slot] = oldHashes[i];
+                size++;
+                used++;
+            }
+        }
+    }
+
+    private void resetIndex(int length) {
+        addresses = new long[length];
+        Arrays.fill(addresses, DataSize.empty);
+        hashes = new int[length];
+        size = 0;
+        used = 0;
+    }
+}
@@ -0,0 +1,221 @@
+package indi.sophronia.tools.cache.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * lock file shared by the processes working on the same {@link FileCache} files.
+ * the first region serializes the writers, the second one is held shared by the readers
+ * and exclusively while the files are modified.
+ * the generation counter in front of the regions is increased by every modification,
+ * so that the other processes know when to reload what they keep in memory.
+ * the end of the shared write-ahead log and the position applied to the files tell them which logged writes to follow.
+ * the counters are mapped, reading them costs no system call.
+ * file locks are held by the whole JVM, so each region is taken once and counted for the threads.
+ * the reader region is polled with a backoff rather than waited for, as the kernel takes a process waiting for it
+ * while another of its threads waits for the writer region as a deadlock
+ */
+final class ProcessLock implements Closeable {
+    // lock file -> generation long, writer region byte, reader region byte, padding(6),
+    // checkpoints long, dead_bytes long, wal_end long, wal_applied long
+    private static final int GENERATION_OFFSET = 0;
+    private static final long WRITER_REGION = Long.BYTES;
+    private static final long READER_REGION = Long.BYTES + 1;
+    private static final int CHECKPOINTS_OFFSET = 2 * Long.BYTES;
+    private static final int DEAD_BYTES_OFFSET = 3 * Long.BYTES;
+    private static final int WAL_END_OFFSET = 4 * Long.BYTES;
+    private static final int WAL_APPLIED_OFFSET = 5 * Long.BYTES;
+    private static final int STATE_SIZE = 6 * Long.BYTES;
+
+    private static final int SPINS = 16;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    ProcessLock(Path path) {
+        this.path = path;
+    }
+
+    private final Path path;
+
+    private FileChannel fileChannel;
+
+    private MappedByteBuffer state;
+
+    private FileLock writerLock;
+
+    private int writerHolds;
+
+    private FileLock readerLock;
+
+    /**
+     * threads holding the reader region, shared or exclusive
+     */
+    private int readerHolds;
+
+    private boolean exclusive;
+
+    void open() throws IOException {
+        fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        boolean created = fileChannel.size() < DEAD_BYTES_OFFSET + Long.BYTES;
+        state = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+        if (created) {
+            // nobody has counted the dead bytes yet
+            state.putLong(DEAD_BYTES_OFFSET, -1);
+        }
+    }
+
+    /**
+     * should be called with the write mutex held
+     */
+    void lockWriter() throws IOException {
+        writerHolds++;
+        if (writerLock == null) {
+            writerLock = fileChannel.lock(WRITER_REGION, 1, false);
+        }
+    }
+
+    void unlockWriter() throws IOException {
+        if (--writerHolds == 0 && writerLock != null) {
+            writerLock.release();
+            writerLock = null;
+        }
+    }
+
+    /**
+     * should be called with the read lock held. inside the exclusive region nothing more is taken
+     */
+    synchronized void lockShared() throws IOException {
+        readerHolds++;
+        if (readerLock == null) {
+            readerLock = pollReaderRegion(true);
+        }
+    }
+
+    /**
+     * should be called with the write lock held, when no thread of this process holds the shared region
+     */
+    synchronized void lockExclusive() throws IOException {
+        readerHolds++;
+        if (!exclusive) {
+            readerLock = pollReaderRegion(false);
+            exclusive = true;
+        }
+    }
+
+    synchronized void unlockReader() throws IOException {
+        if (--readerHolds == 0 && readerLock != null) {
+            readerLock.release();
+            readerLock = null;
+            exclusive = false;
+        }
+    }
+
+    /**
+     * retries at once a few times, as the region is mostly held briefly, then backs off exponentially
+     */
+    private FileLock pollReaderRegion(boolean shared) throws IOException {
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        for (int attempt = 0; ; attempt++) {
+            FileLock fileLock = fileChannel.tryLock(READER_REGION, 1, shared);
+            if (fileLock != null) {
+                return fileLock;
+            }
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            LockSupport.parkNanos(this, backoffNanos);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("interrupted while waiting for the lock file");
+            }
+            backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * should be called with either region held, otherwise the value may be outdated
+     */
+    long generation() {
+        return state.getLong(GENERATION_OFFSET);
+    }
+
+    /**
+     * should be called with the reader region held exclusively
+     */
+    void writeGeneration(long generation) {
+        state.putLong(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * @return number of times the shared write-ahead log has been reset
+     */
+    long checkpoints() {
+        return state.getLong(CHECKPOINTS_OFFSET);
+    }
+
+    /**
+     * should be called with the writer region held, before the log is reset
+     */
+    void writeCheckpoints(long checkpoints) {
+        state.putLong(CHECKPOINTS_OFFSET, checkpoints);
+    }
+
+    /**
+     * @return dead bytes of the data file counted by the writers, -1 if unknown
+     */
+    long deadBytes() {
+        return state.getLong(DEAD_BYTES_OFFSET);
+    }
+
+    /**
+     * should be called with the writer region held
+     */
+    void writeDeadBytes(long deadBytes) {
+        state.putLong(DEAD_BYTES_OFFSET, deadBytes);
+    }
+
+    /**
+     * @return end of the records appended to the shared write-ahead log since its last reset
+     */
+    long walEnd() {
+        return state.getLong(WAL_END_OFFSET);
+    }
+
+    /**
+     * should be called with the writer region held, once the records are appended
+     */
+    void writeWalEnd(long walEnd) {
+        state.putLong(WAL_END_OFFSET, walEnd);
+    }
+
+    /**
+     * @return position in the shared write-ahead log up to which the records are applied to the files
+     */
+    long walApplied() {
+        return state.getLong(WAL_APPLIED_OFFSET);
+    }
+
+    /**
+     * should be called with the writer region held, once the files hold the records
+     */
+    void writeWalApplied(long walApplied) {
+        state.putLong(WAL_APPLIED_OFFSET, walApplied);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
@@ -0,0 +1,111 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.ScanPage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * concurrent map spread over maps by the leading bits of the key hash, so that a scan
+ * reads one of them at a time and pages the keys in hash order instead of collecting all of them per page
+ */
+final class SegmentedMap<V> {
+    private static final int SEGMENT_BITS = 8;
+
+    private static final int POSITION_BITS = Integer.SIZE;
+
+    SegmentedMap() {
+        this.segments = new ArrayList<>(1 << SEGMENT_BITS);
+        for (int i = 0; i < 1 << SEGMENT_BITS; i++) {
+            this.segments.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    private final List<ConcurrentMap<String, V>> segments;
+
+    V get(String key) {
+        return segmentOf(key).get(key);
+    }
+
+    boolean containsKey(String key) {
+        return segmentOf(key).containsKey(key);
+    }
+
+    V put(String key, V value) {
+        return segmentOf(key).put(key, value);
+    }
+
+    V putIfAbsent(String key, V value) {
+        return segmentOf(key).putIfAbsent(key, value);
+    }
+
+    boolean replace(String key, V expected, V value) {
+        return segmentOf(key).replace(key, expected, value);
+    }
+
+    V remove(String key) {
+        return segmentOf(key).remove(key);
+    }
+
+    boolean remove(String key, V value) {
+        return segmentOf(key).remove(key, value);
+    }
+
+    void forEach(BiConsumer<String, V> action) {
+        for (ConcurrentMap<String, V> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    /**
+     * the cursor is the hash position the page starts at, so that keys added or removed meanwhile move no others.
+     * the keys of a segment from there are examined in hash order, and the page moves on to the next segments
+     * until count keys are examined. keys sharing the last position go along, so a page only holds more
+     * than count keys on a full hash collision
+     *
+     * @param filter whether an examined entry is returned
+     */
+    ScanPage scan(long cursor, BiPredicate<String, V> filter, int count) {
+        List<String> keys = new ArrayList<>();
+        long position = cursor;
+        int examined = 0;
+        while (position < 1L << POSITION_BITS && examined < Math.max(count, 1)) {
+            int index = (int) (position >>> (POSITION_BITS - SEGMENT_BITS));
+            long end = (long) (index + 1) << (POSITION_BITS - SEGMENT_BITS);
+
+            List<Map.Entry<String, V>> candidates = new ArrayList<>();
+            for (Map.Entry<String, V> entry : segments.get(index).entrySet()) {
+                if (positionOf(entry.getKey()) >= position) {
+                    candidates.add(entry);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(entry -> positionOf(entry.getKey())));
+
+            int taken = 0;
+            while (taken < candidates.size() && (examined < Math.max(count, 1) ||
+                    positionOf(candidates.get(taken).getKey()) == positionOf(candidates.get(taken - 1).getKey()))) {
+                Map.Entry<String, V> entry = candidates.get(taken++);
+                examined++;
+                if (filter.test(entry.getKey(), entry.getValue())) {
+                    keys.add(entry.getKey());
+                }
+            }
+            position = taken < candidates.size() ? positionOf(candidates.get(taken).getKey()) : end;
+        }
+        return new ScanPage(position < 1L << POSITION_BITS ? position : 0, keys);
+    }
+
+    private ConcurrentMap<String, V> segmentOf(String key) {
+        return segments.get((int) (positionOf(key) >>> (POSITION_BITS - SEGMENT_BITS)));
+    }
+
+    private static long positionOf(String key) {
+        return Integer.toUnsignedLong(key.hashCode() * 0x9E3779B9);
+    }
+}
@@ -0,0 +1,311 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
+import indi.sophronia.tools.util.Rethrow;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * partitions the keys by hash into independent {@link FileCache} instances,
+ * each with its own pair of files and locks, so that operations on different shards run in parallel
+ */
+public class ShardedFileCache implements CacheFacade {
+    public ShardedFileCache(String fileName, int shardCount) {
+        this.fileName = fileName;
+        this.shards = new FileCache[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new FileCache(fileName + ".shard-" + i, compactor, syncer, false);
+        }
+    }
+
+    private static final long SHARD_CURSOR_MASK = (1L << FileCache.SCAN_CURSOR_BITS) - 1;
+
+    private final String fileName;
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor();
+
+    private final FileCache[] shards;
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        for (FileCache shard : shards) {
+            shard.setMemoryMapped(memoryMapped);
+        }
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        for (FileCache shard : shards) {
+            shard.setCompactionThreshold(compactionThreshold);
+        }
+    }
+
+    public void setCompressValues(boolean compressValues) {
+        for (FileCache shard : shards) {
+            shard.setCompressValues(compressValues);
+        }
+    }
+
+    public void setSyncMillis(long syncMillis) {
+        for (FileCache shard : shards) {
+            shard.setSyncMillis(syncMillis);
+        }
+    }
+
+    public void setShared(boolean shared) {
+        for (FileCache shard : shards) {
+            shard.setShared(shared);
+        }
+    }
+
+    public void setKeyFilterType(String keyFilterType) {
+        for (FileCache shard : shards) {
+            shard.setKeyFilterType(keyFilterType);
+        }
+    }
+
+    /**
+     * @param keyFilterCapacity number of keys over all shards
+     */
+    public void setKeyFilterCapacity(int keyFilterCapacity) {
+        for (FileCache shard : shards) {
+            shard.setKeyFilterCapacity(Math.max(keyFilterCapacity / shards.length, 1));
+        }
+    }
+
+    @Override
+    public void init() {
+        checkShardCount();
+        for (FileCache shard : shards) {
+            shard.init();
+        }
+        migrateUnshardedFiles();
+    }
+
+    @Override
+    public void destroy() {
+        for (FileCache shard : shards) {
+            shard.destroy();
+        }
+        compactor.shutdown();
+        syncer.shutdown();
+    }
+
+    @Override
+    public Set<String> keys(String pattern) {
+        Set<String> keys = new HashSet<>();
+        for (FileCache shard : shards) {
+            keys.addAll(shard.keys(pattern));
+        }
+        return keys;
+    }
+
+    /**
+     * the shards are scanned one after another, the bits of the cursor above those of a shard cursor
+     * tell the shard the page is taken from
+     */
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        int shard = (int) (cursor >>> FileCache.SCAN_CURSOR_BITS);
+        if (shard >= shards.length) {
+            return new ScanPage(0, new ArrayList<>());
+        }
+
+        ScanPage page = shards[shard].scan(cursor & SHARD_CURSOR_MASK, pattern, count);
+        if (page.getCursor() != 0) {
+            return new ScanPage((long) shard << FileCache.SCAN_CURSOR_BITS | page.getCursor(), page.getKeys());
+        }
+        shard++;
+        return new ScanPage(shard == shards.length ? 0 : (long) shard << FileCache.SCAN_CURSOR_BITS, page.getKeys());
+    }
+
+    @Override
+    public <T> void save(String key, T value, long expireMillis) {
+        shardOf(key).save(key, value, expireMillis);
+    }
+
+    @Override
+    public <T> void savePersist(String key, T value) {
+        shardOf(key).savePersist(key, value);
+    }
+
+    @Override
+    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+        List<Map<String, T>> partitions = partition(data);
+        for (int i = 0; i < shards.length; i++) {
+            if (partitions.get(i) != null) {
+                shards[i].saveBatch(partitions.get(i), expireMillis);
+            }
+        }
+    }
+
+    @Override
+    public <T> void saveBatchPersist(Map<String, T> data) {
+        saveBatch(data, 0L);
+    }
+
+    @Override
+    public <T> T load(String key) {
+        return shardOf(key).load(key);
+    }
+
+    @Override
+    public long expireAt(String key) {
+        return shardOf(key).expireAt(key);
+    }
+
+    @Override
+    public <T> Map<String, T> loadBatch(Collection<String> keys) {
+        List<List<String>> partitions = partition(keys);
+        Map<String, T> results = new HashMap<>(keys.size());
+        for (int i = 0; i < shards.length; i++) {
+            if (partitions.get(i) != null) {
+                results.putAll(shards[i].loadBatch(partitions.get(i)));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void invalidate(String key) {
+        shardOf(key).invalidate(key);
+    }
+
+    @Override
+    public void invalidateBatch(Collection<String> keys) {
+        List<List<String>> partitions = partition(keys);
+        for (int i = 0; i < shards.length; i++) {
+            if (partitions.get(i) != null) {
+                shards[i].invalidateBatch(partitions.get(i));
+            }
+        }
+    }
+
+    /**
+     * String#hashCode is specified, so a key maps to the same shard across runs
+     */
+    private int shardIndexOf(String key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private FileCache shardOf(String key) {
+        return shards[shardIndexOf(key)];
+    }
+
+    /**
+     * @return one map per shard, null for the shards without any key
+     */
+    private <T> List<Map<String, T>> partition(Map<String, T> data) {
+        List<Map<String, T>> partitions = new ArrayList<>(Collections.nCopies(shards.length, null));
+        data.forEach((key, value) -> {
+            int index = shardIndexOf(key);
+            if (partitions.get(index) == null) {
+                partitions.set(index, new HashMap<>());
+            }
+            partitions.get(index).put(key, value);
+        });
+        return partitions;
+    }
+
+    /**
+     * @return one list per shard, null for the shards without any key
+     */
+    private List<List<String>> partition(Collection<String> keys) {
+        List<List<String>> partitions = new ArrayList<>(Collections.nCopies(shards.length, null));
+        for (String key : keys) {
+            int index = shardIndexOf(key);
+            if (partitions.get(index) == null) {
+                partitions.set(index, new ArrayList<>());
+            }
+            partitions.get(index).add(key);
+        }
+        return partitions;
+    }
+
+    /**
+     * keys are placed by the shard count, so files written with another count cannot be read
+     */
+    private void checkShardCount() {
+        Path path = Path.of(fileName + ".shards.kvdb");
+        try {
+            if (Files.exists(path)) {
+                int count = Integer.parseInt(Files.readString(path, StandardCharsets.UTF_8).trim());
+                if (count != shards.length) {
+                    throw new IllegalStateException(
+                            "cache files are split into " + count + " shards, but " + shards.length + " configured"
+                    );
+                }
+            } else {
+                Path parent = path.toAbsolutePath().getParent();
+                Files.createDirectories(parent);
+                Files.writeString(path, String.valueOf(shards.length), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    /**
+     * imports the files of an unsharded {@link FileCache} with the same name, then renames them aside.
+     * each entry keeps its remaining time to live
+     */
+    private void migrateUnshardedFiles() {
+        Path index = Path.of(fileName + ".index.kvdb");
+        Path data = Path.of(fileName + ".data.kvdb");
+        if (!Files.exists(index) || !Files.exists(data)) {
+            return;
+        }
+
+        FileCache unsharded = new FileCache(fileName, compactor, syncer, false);
+        unsharded.init();
+
+        Map<Long, Map<String, String>> batches = new HashMap<>();
+        int[] batchSize = new int[1];
+        unsharded.forEach((key, value, expireAt) -> {
+            batches.computeIfAbsent(expireAt, k -> new HashMap<>()).put(key, value);
+            if (++batchSize[0] >= 1024) {
+                saveBatches(batches);
+                batches.clear();
+                batchSize[0] = 0;
+            }
+        });
+        saveBatches(batches);
+        unsharded.destroy();
+
+        try {
+            Files.move(index, Path.of(fileName + ".index.migrated.kvdb"));
+            Files.move(data, Path.of(fileName + ".data.migrated.kvdb"));
+            Path delta = Path.of(fileName + ".index.delta.kvdb");
+            if (Files.exists(delta)) {
+                Files.move(delta, Path.of(fileName + ".index.delta.migrated.kvdb"));
+            }
+            // checkpointed at destroy, nothing left to replay
+            Files.deleteIfExists(Path.of(fileName + ".wal.kvdb"));
+        } catch (IOException e) {
+            throw Rethrow.rethrow(e);
+        }
+    }
+
+    /**
+     * @param batches entries grouped by their expiration time, 0 for the persisted ones
+     */
+    private void saveBatches(Map<Long, Map<String, String>> batches) {
+        long timestamp = System.currentTimeMillis();
+        batches.forEach((expireAt, batch) -> {
+            if (expireAt == 0) {
+                saveBatchPersist(batch);
+            } else if (expireAt > timestamp) {
+                saveBatch(batch, expireAt - timestamp);
+            }
+            // expired during the import otherwise
+        });
+    }
+}
@@ -0,0 +1,341 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.CacheFacade;
+import indi.sophronia.tools.cache.ScanPage;
+
+import java.util.*;
+
+/**
+ * stack of any number of tiers, from the fastest to the slowest.
+ * a read goes down until a tier has the key and copies the value into the tiers above that promote,
+ * a write reaches every tier according to its write policy
+ */
+public class TieredCache implements CacheFacade {
+    public enum WritePolicy {
+        /**
+         * written with the caller
+         */
+        THROUGH,
+        /**
+         * written in the background through a {@link WriteBehindQueue}
+         */
+        BEHIND,
+        /**
+         * the key is only invalidated, the tier gets values by promotion
+         */
+        INVALIDATE
+    }
+
+    private static class Tier {
+        private final CacheFacade cache;
+        private final boolean promote;
+        private final long promoteMillis;
+        private final WritePolicy writePolicy;
+        private final long ttlMillis;
+
+        private WriteBehindQueue writeBehind;
+
+        private Tier(CacheFacade cache, boolean promote, long promoteMillis, WritePolicy writePolicy, long ttlMillis) {
+            this.cache = cache;
+            this.promote = promote;
+            this.promoteMillis = promoteMillis;
+            this.writePolicy = writePolicy;
+            this.ttlMillis = ttlMillis;
+        }
+
+        /**
+         * @return the expiration of a write capped by the ttl of the tier, 0 for persist
+         */
+        private long expireMillisOf(long expireMillis) {
+            if (ttlMillis == 0) {
+                return expireMillis;
+            }
+            return expireMillis == 0 ? ttlMillis : Math.min(expireMillis, ttlMillis);
+        }
+    }
+
+    private final List<Tier> tiers = new ArrayList<>();
+
+    private static final int SCAN_CURSOR_BITS = 48;
+    private static final long SCAN_CURSOR_MASK = (1L << SCAN_CURSOR_BITS) - 1;
+
+    private int writeBehindCapacity = 65536;
+
+    /**
+     * adds a tier below the ones added before
+     *
+     * @param promote       whether values found in lower tiers are copied into this one
+     * @param promoteMillis how long a promoted value is kept, 0 to keep it as long as the tier it comes from
+     */
+    public void addTier(CacheFacade cache, boolean promote, long promoteMillis, WritePolicy writePolicy) {
+        addTier(cache, promote, promoteMillis, writePolicy, 0L);
+    }
+
+    /**
+     * adds a tier below the ones added before
+     *
+     * @param ttlMillis how long any value written into the tier is kept at most, 0 for no limit
+     */
+    public void addTier(CacheFacade cache, boolean promote, long promoteMillis, WritePolicy writePolicy,
+                        long ttlMillis) {
+        tiers.add(new Tier(cache, promote, promoteMillis, writePolicy, ttlMillis));
+    }
+
+    /**
+     * @param writeBehindCapacity number of keys with a pending write at most, for each tier written behind
+     */
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+
+    @Override
+    public void init() {
+        for (Tier tier : tiers) {
+            tier.cache.init();
+            if (tier.writePolicy == WritePolicy.BEHIND) {
+                tier.writeBehind = new WriteBehindQueue(tier.cache, writeBehindCapacity, false);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (Tier tier : tiers) {
+            if (tier.writeBehind != null) {
+                tier.writeBehind.close();
+            }
+            tier.cache.destroy();
+        }
+    }
+
+    @Override
+    public Set<String> keys(String pattern) {
+        Set<String> keys = new HashSet<>();
+        for (Tier tier : tiers) {
+            keys.addAll(tier.cache.keys(pattern));
+        }
+        return keys;
+    }
+
+    /**
+     * pages come from the lowest tier and then from the others upwards, for the keys they alone hold,
+     * so a key promoted from a lower tier is returned by that tier only.
+     * the bits of the cursor above those of a single cache count the tiers done
+     */
+    @Override
+    public ScanPage scan(long cursor, String pattern, int count) {
+        int done = (int) (cursor >>> SCAN_CURSOR_BITS);
+        if (done >= tiers.size()) {
+            return new ScanPage(0, new ArrayList<>());
+        }
+
+        int index = tiers.size() - 1 - done;
+        ScanPage page = tiers.get(index).cache.scan(cursor & SCAN_CURSOR_MASK, pattern, count);
+        List<String> keys = page.getKeys();
+        if (done > 0) {
+            keys = new ArrayList<>(keys.size());
+            for (String key : page.getKeys()) {
+                if (!heldBelow(key, index)) {
+                    keys.add(key);
+                }
+            }
+        }
+
+        if (page.getCursor() != 0) {
+            return new ScanPage((long) done << SCAN_CURSOR_BITS | page.getCursor(), keys);
+        }
+        done++;
+        return new ScanPage(done == tiers.size() ? 0 : (long) done << SCAN_CURSOR_BITS, keys);
+    }
+
+    private boolean heldBelow(String key, int index) {
+        for (int i = index + 1; i < tiers.size(); i++) {
+            if (tiers.get(i).cache.expireAt(key) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public <T> void save(String key, T value, long expireMillis) {
+        for (Tier tier : tiers) {
+            switch (tier.writePolicy) {
+                case THROUGH:
+                    tier.cache.save(key, value, tier.expireMillisOf(expireMillis));
+                    break;
+                case BEHIND:
+                    tier.writeBehind.save(key, value, tier.expireMillisOf(expireMillis));
+                    break;
+                default:
+                    tier.cache.invalidate(key);
+            }
+        }
+    }
+
+    @Override
+    public <T> void savePersist(String key, T value) {
+        save(key, value, 0L);
+    }
+
+    @Override
+    public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+        for (Tier tier : tiers) {
+            switch (tier.writePolicy) {
+                case THROUGH:
+                    tier.cache.saveBatch(data, tier.expireMillisOf(expireMillis));
+                    break;
+                case BEHIND:
+                    data.forEach((key, value) -> tier.writeBehind.save(key, value, tier.expireMillisOf(expireMillis)));
+                    break;
+                default:
+                    tier.cache.invalidateBatch(data.keySet());
+            }
+        }
+    }
+
+    @Override
+    public <T> void saveBatchPersist(Map<String, T> data) {
+        saveBatch(data, 0L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T load(String key) {
+        for (int i = 0; i < tiers.size(); i++) {
+            Tier tier = tiers.get(i);
+            // a write still queued for the tier is newer than what it holds
+            Object[] pending = tier.writeBehind == null ? null : tier.writeBehind.pending(key);
+            T value = pending != null ? (T) pending[0] : tier.cache.load(key);
+
+            if (value != null) {
+                if (i > 0) {
+                    promote(key, value, i, pending != null ?
+                            expireAtOf((long) pending[1]) : tier.cache.expireAt(key));
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * asks each tier in turn for the keys the tiers above have not found, with one batch per tier
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> Map<String, T> loadBatch(Collection<String> keys) {
+        Map<String, T> results = new HashMap<>(keys.size());
+        Set<String> missing = new LinkedHashSet<>(keys);
+        for (int i = 0; i < tiers.size() && !missing.isEmpty(); i++) {
+            Tier tier = tiers.get(i);
+            Map<String, T> found = new HashMap<>();
+            Map<String, Long> expireAts = new HashMap<>();
+            Set<String> asked = missing;
+            if (tier.writeBehind != null) {
+                asked = new LinkedHashSet<>(missing.size());
+                for (String key : missing) {
+                    // a write still queued for the tier is newer than what it holds
+                    Object[] pending = tier.writeBehind.pending(key);
+                    if (pending == null) {
+                        asked.add(key);
+                    } else if (pending[0] != null) {
+                        found.put(key, (T) pending[0]);
+                        expireAts.put(key, expireAtOf((long) pending[1]));
+                    }
+                }
+            }
+            if (!asked.isEmpty()) {
+                found.putAll(tier.cache.loadBatch(asked));
+            }
+            missing.removeAll(found.keySet());
+
+            if (i > 0) {
+                for (Map.Entry<String, T> entry : found.entrySet()) {
+                    Long expireAt = expireAts.get(entry.getKey());
+                    promote(entry.getKey(), entry.getValue(), i,
+                            expireAt != null ? expireAt : tier.cache.expireAt(entry.getKey()));
+                }
+            }
+            results.putAll(found);
+        }
+        return results;
+    }
+
+    /**
+     * copies a value found in a tier into the promoting ones above, through their write policy,
+     * so that no copy outlives the value it comes from
+     *
+     * @param expireAt of the value in the tier it was found in
+     */
+    private void promote(String key, Object value, int found, long expireAt) {
+        long remainingMillis = expireAt - System.currentTimeMillis();
+        if (expireAt < 0 || expireAt > 0 && remainingMillis <= 0) {
+            // expired since it was read
+            return;
+        }
+
+        for (int j = 0; j < found; j++) {
+            Tier above = tiers.get(j);
+            if (!above.promote) {
+                continue;
+            }
+
+            long expireMillis = above.expireMillisOf(expireAt == 0 ? above.promoteMillis :
+                    above.promoteMillis == 0 ? remainingMillis : Math.min(above.promoteMillis, remainingMillis));
+            if (above.writePolicy == WritePolicy.BEHIND) {
+                above.writeBehind.save(key, value, expireMillis);
+            } else {
+                above.cache.save(key, value, expireMillis);
+            }
+        }
+    }
+
+    private static long expireAtOf(long expireMillis) {
+        return expireMillis == 0 ? 0 : System.currentTimeMillis() + expireMillis;
+    }
+
+    /**
+     * from the first tier holding the key, as a load would find it
+     */
+    @Override
+    public long expireAt(String key) {
+        for (Tier tier : tiers) {
+            Object[] pending = tier.writeBehind == null ? null : tier.writeBehind.pending(key);
+            if (pending != null) {
+                if (pending[0] != null) {
+                    return expireAtOf((long) pending[1]);
+                }
+                continue;
+            }
+
+            long expireAt = tier.cache.expireAt(key);
+            if (expireAt >= 0) {
+                return expireAt;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void invalidate(String key) {
+        for (Tier tier : tiers) {
+            if (tier.writeBehind != null) {
+                tier.writeBehind.invalidate(key);
+            } else {
+                tier.cache.invalidate(key);
+            }
+        }
+    }
+
+    @Override
+    public void invalidateBatch(Collection<String> keys) {
+        for (Tier tier : tiers) {
+            if (tier.writeBehind != null) {
+                keys.forEach(tier.writeBehind::invalidate);
+            } else {
+                tier.cache.invalidateBatch(keys);
+            }
+        }
+    }
+}
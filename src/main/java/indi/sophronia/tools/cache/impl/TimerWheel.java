@@ -0,0 +1,168 @@
+package indi.sophronia.tools.cache.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * hierarchical timing wheel ordering the entries of {@link DefaultMemoryCache} by expiration time.
+ * four levels of 64 buckets, a bucket of level n spans 64^n ticks of the precision,
+ * the entries of a bucket are cascaded into lower levels once time reaches it.
+ * advancing costs the buckets passed and the entries expired or cascaded, not the entries of the cache.
+ * not thread safe
+ */
+final class TimerWheel {
+    abstract static class Node {
+        private Node previous;
+        private Node next;
+        private long deadline;
+
+        /**
+         * @return expiration time in millis, 0 if it never expires, negative if removed
+         */
+        abstract long expireAt();
+    }
+
+    private static final class Sentinel extends Node {
+        private Sentinel() {
+            link(this, this);
+        }
+
+        @Override
+        long expireAt() {
+            return 0;
+        }
+    }
+
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    private final long precision;
+
+    private final Node[][] wheel;
+
+    private long ticks;
+
+    /**
+     * @param precision millis per tick, entries expire at most this late
+     */
+    TimerWheel(long precision, long now) {
+        if (precision <= 0) {
+            throw new IllegalArgumentException("precision should be positive");
+        }
+
+        this.precision = precision;
+        this.ticks = now / precision;
+        this.wheel = new Node[LEVELS][BUCKETS];
+        for (Node[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                level[i] = new Sentinel();
+            }
+        }
+    }
+
+    /**
+     * schedules the node unless it is already scheduled no later,
+     * a later expiration is found when it fires and the node is scheduled again
+     */
+    void schedule(Node node, long expireAt) {
+        if (node.next != null) {
+            if (node.deadline <= expireAt) {
+                return;
+            }
+            unlink(node);
+        }
+
+        node.deadline = expireAt;
+        Node sentinel = bucketOf(expireAt / precision);
+        link(sentinel.previous, node);
+        link(node, sentinel);
+    }
+
+    void remove(Node node) {
+        if (node.next != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * @return the nodes expired at the time, removed from the wheel
+     */
+    List<Node> advance(long now) {
+        long previous = ticks;
+        long current = now / precision;
+        if (current <= previous) {
+            return Collections.emptyList();
+        }
+        ticks = current;
+
+        List<Node> expired = new ArrayList<>();
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * BITS;
+            long previousTicks = previous >>> shift;
+            long currentTicks = current >>> shift;
+            if (previousTicks == currentTicks) {
+                break;
+            }
+
+            // the bucket of the previous tick is included, it takes the nodes already due when scheduled
+            long end = previousTicks + Math.min(currentTicks - previousTicks, BUCKETS - 1);
+            for (long i = previousTicks; i <= end; i++) {
+                expireBucket(wheel[level][(int) (i & (BUCKETS - 1))], now, expired);
+            }
+        }
+        return expired;
+    }
+
+    private void expireBucket(Node sentinel, long now, List<Node> expired) {
+        Node node = sentinel.next;
+        link(sentinel, sentinel);
+        while (node != sentinel) {
+            Node next = node.next;
+            node.previous = null;
+            node.next = null;
+
+            long expireAt = node.expireAt();
+            if (expireAt > now) {
+                // not due yet, or updated since scheduled
+                schedule(node, expireAt);
+            } else if (expireAt > 0) {
+                expired.add(node);
+            }
+            // persisted or removed meanwhile, dropped
+
+            node = next;
+        }
+    }
+
+    private Node bucketOf(long target) {
+        long delay = target - ticks;
+        if (delay <= 0) {
+            return wheel[0][(int) (ticks & (BUCKETS - 1))];
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * BITS;
+            if (delay < 1L << (shift + BITS)) {
+                return wheel[level][(int) ((target >>> shift) & (BUCKETS - 1))];
+            }
+        }
+
+        // beyond the span of the wheel, parked in the farthest bucket and scheduled again when it fires
+        int shift = (LEVELS - 1) * BITS;
+        long parked = ticks + (1L << (LEVELS * BITS)) - 1;
+        return wheel[LEVELS - 1][(int) ((parked >>> shift) & (BUCKETS - 1))];
+    }
+
+    private static void link(Node previous, Node next) {
+        previous.next = next;
+        next.previous = previous;
+    }
+
+    private static void unlink(Node node) {
+        link(node.previous, node.next);
+        node.previous = null;
+        node.next = null;
+    }
+}
@@ -0,0 +1,235 @@
+package indi.sophronia.tools.cache.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * format of the value records in the data file of {@link FileCache}.
+ * raw records are value_length int, value.
+ * compressed records are stored_length int, value_length int, stored, where stored is the value deflated
+ * with the preset dictionary, or the value itself if deflating does not make it shorter
+ */
+final class ValueCodec {
+    static final ValueCodec RAW = new ValueCodec(false, new byte[0]);
+
+    // deflate cannot look back further than its window, so a longer dictionary is useless
+    static final int maxDictionaryLength = 32 * 1024;
+
+    private static final int rawHeaderSize = Integer.BYTES;
+    private static final int compressedHeaderSize = 2 * Integer.BYTES;
+
+    /**
+     * per thread codec state, the buffers only grow, so that steady reads allocate nothing but the result
+     */
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private static class Buffers {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final Inflater inflater = new Inflater(true);
+        byte[] stored = new byte[1024];
+        byte[] value = new byte[1024];
+
+        byte[] stored(int length) {
+            if (stored.length < length) {
+                stored = new byte[Math.max(length, stored.length * 2)];
+            }
+            return stored;
+        }
+
+        byte[] value(int length) {
+            if (value.length < length) {
+                value = new byte[Math.max(length, value.length * 2)];
+            }
+            return value;
+        }
+    }
+
+    private ValueCodec(boolean compressed, byte[] dictionary) {
+        this.compressed = compressed;
+        this.dictionary = dictionary;
+    }
+
+    static ValueCodec deflate(byte[] dictionary) {
+        return new ValueCodec(true, dictionary);
+    }
+
+    /**
+     * builds a dictionary from sampled values. deflate prefers matches close to the data,
+     * so the samples are concatenated with the first ones at the end of the dictionary
+     */
+    static byte[] train(List<byte[]> samples) {
+        byte[] dictionary = new byte[maxDictionaryLength];
+        int position = dictionary.length;
+        for (byte[] sample : samples) {
+            int length = Math.min(sample.length, position);
+            position -= length;
+            System.arraycopy(sample, 0, dictionary, position, length);
+            if (position == 0) {
+                break;
+            }
+        }
+        return Arrays.copyOfRange(dictionary, position, dictionary.length);
+    }
+
+    private final boolean compressed;
+
+    private final byte[] dictionary;
+
+    boolean compressed() {
+        return compressed;
+    }
+
+    byte[] dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * the dictionary is kept as a raw record at the start of the data file
+     */
+    int dictionaryRecordSize() {
+        return dictionary.length == 0 ? 0 : rawHeaderSize + dictionary.length;
+    }
+
+    byte[] encodeDictionary() {
+        if (dictionary.length == 0) {
+            return new byte[0];
+        }
+        return ByteBuffer.allocate(dictionaryRecordSize())
+                .putInt(dictionary.length).put(dictionary)
+                .array();
+    }
+
+    /**
+     * @return the whole record, header included
+     */
+    byte[] encode(byte[] value) {
+        if (!compressed) {
+            return ByteBuffer.allocate(rawHeaderSize + value.length)
+                    .putInt(value.length).put(value)
+                    .array();
+        }
+
+        Deflater deflater = BUFFERS.get().deflater;
+        deflater.reset();
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(value);
+        deflater.finish();
+
+        // only an output shorter than the value is worth keeping
+        byte[] record = new byte[compressedHeaderSize + value.length];
+        int limit = value.length - 1;
+        int storedLength = 0;
+        while (!deflater.finished() && storedLength < limit) {
+            storedLength += deflater.deflate(record, compressedHeaderSize + storedLength, limit - storedLength);
+        }
+
+        if (!deflater.finished()) {
+            System.arraycopy(value, 0, record, compressedHeaderSize, value.length);
+            storedLength = value.length;
+        }
+        ByteBuffer.wrap(record).putInt(storedLength).putInt(value.length);
+        return Arrays.copyOf(record, compressedHeaderSize + storedLength);
+    }
+
+    int recordSize(FileChannel fileChannel, long cursor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(rawHeaderSize);
+        readFully(fileChannel, header, cursor);
+        return headerSize() + header.getInt(0);
+    }
+
+    byte[] read(FileChannel fileChannel, long cursor) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        int valueLength = readInto(fileChannel, cursor, buffers);
+        return Arrays.copyOf(buffers.value, valueLength);
+    }
+
+    String readString(FileChannel fileChannel, long cursor) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        int valueLength = readInto(fileChannel, cursor, buffers);
+        return new String(buffers.value, 0, valueLength, StandardCharsets.UTF_8);
+    }
+
+    String readString(ByteBuffer data, long cursor) throws IOException {
+        if (cursor + headerSize() > data.capacity()) {
+            throw new IOException("fail to read cache file");
+        }
+        int offset = (int) cursor;
+        int storedLength = data.getInt(offset);
+        int valueLength = compressed ? data.getInt(offset + rawHeaderSize) : storedLength;
+        if (offset + headerSize() + storedLength > data.capacity()) {
+            throw new IOException("fail to read cache file");
+        }
+
+        Buffers buffers = BUFFERS.get();
+        byte[] stored = buffers.stored(storedLength);
+        data.get(offset + headerSize(), stored, 0, storedLength);
+        decode(stored, storedLength, valueLength, buffers);
+        return new String(buffers.value, 0, valueLength, StandardCharsets.UTF_8);
+    }
+
+    private int headerSize() {
+        return compressed ? compressedHeaderSize : rawHeaderSize;
+    }
+
+    /**
+     * leaves the value in the value buffer
+     *
+     * @return the length of the value
+     */
+    private int readInto(FileChannel fileChannel, long cursor, Buffers buffers) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize());
+        readFully(fileChannel, header, cursor);
+        int storedLength = header.getInt(0);
+        int valueLength = compressed ? header.getInt(rawHeaderSize) : storedLength;
+
+        byte[] stored = buffers.stored(storedLength);
+        readFully(fileChannel, ByteBuffer.wrap(stored, 0, storedLength), cursor + header.capacity());
+        decode(stored, storedLength, valueLength, buffers);
+        return valueLength;
+    }
+
+    private void decode(byte[] stored, int storedLength, int valueLength, Buffers buffers) throws IOException {
+        byte[] value = buffers.value(valueLength);
+        if (storedLength == valueLength) {
+            System.arraycopy(stored, 0, value, 0, valueLength);
+            return;
+        }
+
+        Inflater inflater = buffers.inflater;
+        inflater.reset();
+        if (dictionary.length > 0) {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int n = 0;
+            while (n < valueLength) {
+                int inflated = inflater.inflate(value, n, valueLength - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("corrupted cache value");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted cache value", e);
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("fail to read cache file");
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package indi.sophronia.tools.cache.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * redo log of the writes to {@link FileCache}. every write is appended here before it touches the cache files,
+ * and the records left since the last checkpoint are replayed at the next init.
+ * replaying is idempotent, so a record whose write did reach the files is harmless
+ */
+final class WriteAheadLog implements Closeable {
+    static final byte PUT = 1;
+    static final byte INVALIDATE = 2;
+
+    // record -> payload_length int, crc32c int, payload
+    // payload -> type byte, expire_at long, key_length int, key, value
+    private static final int recordHeaderSize = 2 * Integer.BYTES;
+    private static final int payloadHeaderSize = Byte.BYTES + Long.BYTES + Integer.BYTES;
+
+    static final class Entry {
+        Entry(byte type, String key, String value, long expireAt) {
+            this(type, key, value, expireAt, -1);
+        }
+
+        private Entry(byte type, String key, String value, long expireAt, long end) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.expireAt = expireAt;
+            this.end = end;
+        }
+
+        final byte type;
+        final String key;
+        final String value;
+        final long expireAt;
+        /**
+         * position after the record, -1 for an entry not read from the log
+         */
+        final long end;
+    }
+
+    WriteAheadLog(Path path) {
+        this.path = path;
+    }
+
+    private final Path path;
+
+    private FileChannel fileChannel;
+
+    /**
+     * whether records were appended since the last fsync
+     */
+    private volatile boolean dirty;
+
+    /**
+     * opens the log for appending
+     *
+     * @return the intact records, a torn or corrupted record and everything after it are cut off
+     */
+    List<Entry> open() throws IOException {
+        fileChannel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+
+        List<Entry> entries = new ArrayList<>();
+        long validLength = read(0, entries::add);
+
+        fileChannel.truncate(validLength);
+        fileChannel.position(validLength);
+        return entries;
+    }
+
+    /**
+     * reads the records from the position on without modifying the log,
+     * so that a process sharing the log follows the writes of the others
+     *
+     * @return the position after the last intact record
+     */
+    long read(long position, Consumer<Entry> consumer) throws IOException {
+        long size = fileChannel.size() - position;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("write-ahead log too large");
+        }
+        if (size <= 0) {
+            return position;
+        }
+
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        while (content.hasRemaining()) {
+            if (fileChannel.read(content, position + content.position()) < 0) {
+                break;
+            }
+        }
+        content.flip();
+
+        CRC32C crc = new CRC32C();
+        int validLength = 0;
+        while (content.remaining() >= recordHeaderSize) {
+            int payloadLength = content.getInt();
+            int checksum = content.getInt();
+            if (payloadLength < payloadHeaderSize || payloadLength > content.remaining()) {
+                break;
+            }
+
+            ByteBuffer payload = content.slice(content.position(), payloadLength);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            byte type = payload.get();
+            long expireAt = payload.getLong();
+            byte[] key = new byte[payload.getInt()];
+            if (key.length > payload.remaining()) {
+                break;
+            }
+            payload.get(key);
+            byte[] value = new byte[payload.remaining()];
+            payload.get(value);
+
+            consumer.accept(new Entry(
+                    type,
+                    new String(key, StandardCharsets.UTF_8),
+                    type == PUT ? new String(value, StandardCharsets.UTF_8) : null,
+                    expireAt,
+                    position + content.position() + payloadLength
+            ));
+            content.position(content.position() + payloadLength);
+            validLength = content.position();
+        }
+        return position + validLength;
+    }
+
+    /**
+     * appends the entries with a single write, durable after the next {@link #sync}
+     */
+    void append(List<Entry> entries) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        int size = 0;
+        for (Entry entry : entries) {
+            byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.value == null ? new byte[0] : entry.value.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = ByteBuffer.allocate(payloadHeaderSize + key.length + value.length)
+                    .put(entry.type).putLong(entry.expireAt).putInt(key.length).put(key).put(value)
+                    .array();
+            payloads.add(payload);
+            size += recordHeaderSize + payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32C crc = new CRC32C();
+        for (byte[] payload : payloads) {
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        }
+        buffer.flip();
+        // another process sharing the files may have appended or checkpointed meanwhile
+        fileChannel.position(fileChannel.size());
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        dirty = true;
+    }
+
+    void sync() throws IOException {
+        if (dirty) {
+            force();
+        }
+    }
+
+    /**
+     * syncs the records appended by any process, as the dirty flag only knows about this one
+     */
+    void force() throws IOException {
+        dirty = false;
+        fileChannel.force(false);
+    }
+
+    /**
+     * cuts off the torn record a process sharing the log left when it died in the middle of an append
+     */
+    void truncate(long size) throws IOException {
+        fileChannel.truncate(size);
+    }
+
+    boolean isOpen() {
+        return fileChannel != null && fileChannel.isOpen();
+    }
+
+    long size() throws IOException {
+        return fileChannel.size();
+    }
+
+    /**
+     * drops every record, should be called once the cache files holding their writes are on disk
+     */
+    void reset() throws IOException {
+        fileChannel.truncate(0);
+        fileChannel.position(0);
+        fileChannel.force(false);
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
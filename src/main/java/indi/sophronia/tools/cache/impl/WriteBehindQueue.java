@@ -0,0 +1,240 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.CacheFacade;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * writes to a slower tier made in the background by a single thread.
+ * pending writes are kept per key, a later write of a key replaces the pending one,
+ * and every pass hands all of them to the tier as batches grouped by expiration.
+ * the bound covers the writes of the current pass too, once it is reached writers wait for the pass to end,
+ * or the write is dropped when shedding. a batch the tier fails is pending again and retried after a pause,
+ * unless the queue is closing. the expiration of a write counts from the time it reaches the tier
+ */
+final class WriteBehindQueue {
+    private static class PendingWrite {
+        /**
+         * null for an invalidation
+         */
+        private final Object value;
+        private final long expireMillis;
+
+        private PendingWrite(Object value, long expireMillis) {
+            this.value = value;
+            this.expireMillis = expireMillis;
+        }
+    }
+
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    WriteBehindQueue(CacheFacade upstream, int capacity, boolean shedWhenFull) {
+        this.upstream = upstream;
+        this.capacity = capacity;
+        this.shedWhenFull = shedWhenFull;
+        this.drainer = new Thread(this::drain, "cache-write-behind");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    private final CacheFacade upstream;
+
+    private final int capacity;
+
+    private final boolean shedWhenFull;
+
+    private final Thread drainer;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * guarded by the lock
+     */
+    private Map<String, PendingWrite> pending = new LinkedHashMap<>();
+
+    /**
+     * the writes of the current pass, still visible until the tier has them
+     */
+    private Map<String, PendingWrite> inFlight = Collections.emptyMap();
+
+    private boolean closed;
+
+    /**
+     * writes dropped since the last pass, reported once per pass
+     */
+    private int shed;
+
+    /**
+     * @param value null to invalidate
+     */
+    void save(String key, Object value, long expireMillis) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("write-behind queue is closed");
+            }
+
+            while (pending.size() + inFlight.size() >= capacity && !pending.containsKey(key)) {
+                if (shedWhenFull) {
+                    shed++;
+                    return;
+                }
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    // kept beyond the bound rather than lost
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            pending.put(key, new PendingWrite(value, expireMillis));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(String key) {
+        save(key, null, 0L);
+    }
+
+    /**
+     * @return null if nothing is pending for the key, otherwise [value, expireMillis], null value for an invalidation
+     */
+    Object[] pending(String key) {
+        lock.lock();
+        try {
+            PendingWrite write = pending.get(key);
+            if (write == null) {
+                write = inFlight.get(key);
+            }
+            return write == null ? null : new Object[]{write.value, write.expireMillis};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * returns once every pending write has reached the tier
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Map<String, PendingWrite> writes;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                writes = pending;
+                inFlight = writes;
+                pending = new LinkedHashMap<>();
+            } finally {
+                lock.unlock();
+            }
+
+            Map<String, PendingWrite> failed = apply(writes);
+
+            lock.lock();
+            try {
+                inFlight = Collections.emptyMap();
+                if (shed > 0) {
+                    System.err.println("write-behind queue is full, drop " + shed + " writes");
+                    shed = 0;
+                }
+                if (!failed.isEmpty() && closed) {
+                    System.err.println("drop " + failed.size() + " writes behind the closed queue");
+                } else if (!failed.isEmpty()) {
+                    // a later write of the key replaces the failed one
+                    failed.forEach(pending::putIfAbsent);
+                    notFull.signalAll();
+                    pauseBeforeRetry();
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * waits out the retry pause unless the queue is closing, an interrupt neither ends the pause
+     * nor is left set to break the waits after it.
+     * should be called with the lock held
+     */
+    private void pauseBeforeRetry() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+        long nanos;
+        while (!closed && (nanos = deadline - System.nanoTime()) > 0) {
+            try {
+                notEmpty.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                // the flag is cleared by the throw, the pause goes on
+            }
+        }
+    }
+
+    /**
+     * every key appears once, so the batches may go in any order, and one failing does not hold back the others
+     *
+     * @return the writes of the failed batches
+     */
+    private Map<String, PendingWrite> apply(Map<String, PendingWrite> writes) {
+        Map<Long, Map<String, Object>> saves = new HashMap<>();
+        List<String> invalidations = new ArrayList<>();
+        writes.forEach((key, write) -> {
+            if (write.value == null) {
+                invalidations.add(key);
+            } else {
+                saves.computeIfAbsent(write.expireMillis, k -> new LinkedHashMap<>()).put(key, write.value);
+            }
+        });
+
+        Map<String, PendingWrite> failed = new LinkedHashMap<>();
+        saves.forEach((expireMillis, data) -> {
+            try {
+                upstream.saveBatch(data, expireMillis);
+            } catch (RuntimeException e) {
+                System.err.println("fail to write behind: " + e.getMessage());
+                data.keySet().forEach(key -> failed.put(key, writes.get(key)));
+            }
+        });
+        if (!invalidations.isEmpty()) {
+            try {
+                upstream.invalidateBatch(invalidations);
+            } catch (RuntimeException e) {
+                System.err.println("fail to invalidate behind: " + e.getMessage());
+                invalidations.forEach(key -> failed.put(key, writes.get(key)));
+            }
+        }
+        return failed;
+    }
+}
@@ -1,7 +1,13 @@
 package indi.sophronia.tools.output;
 
+import indi.sophronia.tools.cache.CacheFacade;
 import indi.sophronia.tools.cache.impl.BufferedCache;
+import indi.sophronia.tools.cache.impl.DefaultMemoryCache;
 import indi.sophronia.tools.cache.impl.FileCache;
+import indi.sophronia.tools.cache.impl.LogStructuredCache;
+import indi.sophronia.tools.cache.impl.OffHeapCache;
+import indi.sophronia.tools.cache.impl.ShardedFileCache;
+import indi.sophronia.tools.cache.impl.TieredCache;
 import indi.sophronia.tools.endpoint.TranslationApiEndpoint;
 import indi.sophronia.tools.util.Language;
 import indi.sophronia.tools.util.PackageScan;
@@ -16,16 +22,53 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 public class TranslationOutput extends OutputStream {
     public TranslationOutput(Properties properties, Charset charset) throws IOException {
-        FileCache fileCache = new FileCache(
-                properties.getProperty("cache.file", "cache/cache")
-        );
-        this.cache.setUpstream(fileCache);
+        CacheFacade upstream;
+        String tiers = properties.getProperty("cache.tiers");
+        if (tiers != null) {
+            // the tiers below the memory buffer, from the fastest, such as offheap,file
+            TieredCache tieredCache = new TieredCache();
+            for (String tier : tiers.split(",")) {
+                tier = tier.trim();
+                String prefix = "cache.tier." + tier;
+                tieredCache.addTier(
+                        createTier(tier, properties),
+                        Boolean.parseBoolean(properties.getProperty(prefix + ".promote", "true")),
+                        Long.parseLong(properties.getProperty(prefix + ".promote.millis", "5000")),
+                        TieredCache.WritePolicy.valueOf(
+                                properties.getProperty(prefix + ".write", "through").toUpperCase(Locale.ROOT)
+                        ),
+                        Long.parseLong(properties.getProperty(prefix + ".ttl", "0"))
+                );
+            }
+            upstream = tieredCache;
+        } else {
+            upstream = createFileCache(properties);
+            long offHeapSize = Long.parseLong(properties.getProperty("cache.offheap.size", "0"));
+            if (offHeapSize > 0) {
+                OffHeapCache offHeapCache = new OffHeapCache();
+                offHeapCache.setCapacity(offHeapSize);
+                offHeapCache.setUpstream(upstream);
+                upstream = offHeapCache;
+            }
+        }
+        this.cache.setUpstream(upstream);
         this.cache.setAsyncUpdateUpstream(true);
+        this.cache.setWriteBehindCapacity(Integer.parseInt(properties.getProperty("cache.memory.write.behind.capacity", "65536")));
+        this.cache.setShedWhenFull(Boolean.parseBoolean(properties.getProperty("cache.memory.write.behind.shed", "false")));
+        this.cache.setRefreshAheadMillis(Long.parseLong(properties.getProperty("cache.memory.refresh.ahead.millis", "1000")));
+        this.cache.setNegativeCacheMillis(Long.parseLong(properties.getProperty("cache.memory.negative.millis", "5000")));
+        this.cache.setNegativeCacheSize(Long.parseLong(properties.getProperty("cache.memory.negative.size", "10000")));
+        this.cache.setMaximumSize(Long.parseLong(properties.getProperty("cache.memory.size", "0")));
+        if (properties.getProperty("cache.memory.bytes") != null) {
+            this.cache.setMaximumWeight(Long.parseLong(properties.getProperty("cache.memory.bytes")));
+        }
+        this.cache.setExpirationPrecision(Long.parseLong(properties.getProperty("cache.memory.expiration.precision", "1000")));
         this.cache.init();
 
         Class<?>[] classes = PackageScan.getClassesByPackageName(
@@ -73,6 +116,52 @@ public class TranslationOutput extends OutputStream {
         this.targetLanguage = l;
     }
 
+    private static CacheFacade createTier(String tier, Properties properties) {
+        switch (tier) {
+            case "memory":
+                DefaultMemoryCache memoryCache = new DefaultMemoryCache();
+                memoryCache.setMaximumSize(Long.parseLong(properties.getProperty("cache.tier.memory.size", "0")));
+                return memoryCache;
+            case "offheap":
+                OffHeapCache offHeapCache = new OffHeapCache();
+                offHeapCache.setCapacity(Long.parseLong(properties.getProperty("cache.offheap.size", String.valueOf(64L << 20))));
+                return offHeapCache;
+            case "file":
+                return createFileCache(properties);
+            default:
+                throw new IllegalArgumentException("unknown cache tier: " + tier);
+        }
+    }
+
+    private static CacheFacade createFileCache(Properties properties) {
+        String cacheFile = properties.getProperty("cache.file", "cache/cache");
+        CacheFacade fileCache;
+        if ("log".equals(properties.getProperty("cache.file.engine"))) {
+            fileCache = new LogStructuredCache(cacheFile);
+        } else if (Integer.parseInt(properties.getProperty("cache.file.shards", "1")) > 1) {
+            ShardedFileCache shardedFileCache = new ShardedFileCache(
+                    cacheFile, Integer.parseInt(properties.getProperty("cache.file.shards"))
+            );
+            shardedFileCache.setMemoryMapped(Boolean.parseBoolean(properties.getProperty("cache.file.mmap", "false")));
+            shardedFileCache.setCompressValues(Boolean.parseBoolean(properties.getProperty("cache.file.compress", "false")));
+            shardedFileCache.setSyncMillis(Long.parseLong(properties.getProperty("cache.file.sync.millis", "1000")));
+            shardedFileCache.setShared(Boolean.parseBoolean(properties.getProperty("cache.file.shared", "false")));
+            shardedFileCache.setKeyFilterType(properties.getProperty("cache.file.filter", "bloom"));
+            shardedFileCache.setKeyFilterCapacity(Integer.parseInt(properties.getProperty("cache.file.filter.capacity", "1048576")));
+            fileCache = shardedFileCache;
+        } else {
+            FileCache indexedFileCache = new FileCache(cacheFile);
+            indexedFileCache.setMemoryMapped(Boolean.parseBoolean(properties.getProperty("cache.file.mmap", "false")));
+            indexedFileCache.setCompressValues(Boolean.parseBoolean(properties.getProperty("cache.file.compress", "false")));
+            indexedFileCache.setSyncMillis(Long.parseLong(properties.getProperty("cache.file.sync.millis", "1000")));
+            indexedFileCache.setShared(Boolean.parseBoolean(properties.getProperty("cache.file.shared", "false")));
+            indexedFileCache.setKeyFilterType(properties.getProperty("cache.file.filter", "bloom"));
+            indexedFileCache.setKeyFilterCapacity(Integer.parseInt(properties.getProperty("cache.file.filter.capacity", "1048576")));
+            fileCache = indexedFileCache;
+        }
+        return fileCache;
+    }
+
     private final Charset charset;
 
     private final BufferedCache cache = new BufferedCache();
@@ -0,0 +1,94 @@
+package indi.sophronia.tools.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * key pattern where '*' matches any sequence of characters, anchored at both ends.
+ * the pattern is split once, matching a key allocates nothing
+ */
+public final class GlobPattern {
+    private GlobPattern(String prefix, String[] middle, String suffix, boolean literal) {
+        this.prefix = prefix;
+        this.middle = middle;
+        this.suffix = suffix;
+        this.literal = literal;
+
+        int length = prefix.length() + suffix.length();
+        for (String part : middle) {
+            length += part.length();
+        }
+        this.minLength = length;
+    }
+
+    public static GlobPattern compile(String pattern) {
+        int first = pattern.indexOf('*');
+        if (first < 0) {
+            return new GlobPattern(pattern, new String[0], "", true);
+        }
+
+        int last = pattern.lastIndexOf('*');
+        List<String> middle = new ArrayList<>();
+        int start = first + 1;
+        while (start <= last) {
+            int end = pattern.indexOf('*', start);
+            if (end > start) {
+                middle.add(pattern.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return new GlobPattern(
+                pattern.substring(0, first),
+                middle.toArray(new String[0]),
+                pattern.substring(last + 1),
+                false
+        );
+    }
+
+    private final String prefix;
+
+    /**
+     * the parts between the first and the last '*', in order
+     */
+    private final String[] middle;
+
+    private final String suffix;
+
+    private final boolean literal;
+
+    private final int minLength;
+
+    /**
+     * @return the part before the first '*', every matching key starts with it
+     */
+    public String literalPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return whether the pattern has no '*' and matches only itself
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    public boolean matches(String key) {
+        if (literal) {
+            return prefix.equals(key);
+        }
+        if (key.length() < minLength || !key.startsWith(prefix) || !key.endsWith(suffix)) {
+            return false;
+        }
+
+        int cursor = prefix.length();
+        int limit = key.length() - suffix.length();
+        for (String part : middle) {
+            cursor = key.indexOf(part, cursor);
+            if (cursor < 0 || cursor + part.length() > limit) {
+                return false;
+            }
+            cursor += part.length();
+        }
+        return true;
+    }
+}
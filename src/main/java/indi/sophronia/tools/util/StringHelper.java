@@ -6,16 +6,18 @@ import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class StringHelper {
-    private static final MessageDigest DIGEST;
+    private static final ThreadLocal<MessageDigest> DIGEST;
 
     private static final Language[] LANGUAGE_TABLE;
 
     static {
-        try {
-            DIGEST = MessageDigest.getInstance("md5");
-        } catch (NoSuchAlgorithmException e) {
-            throw Rethrow.rethrow(e);
-        }
+        DIGEST = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException e) {
+                throw Rethrow.rethrow(e);
+            }
+        });
 
         LANGUAGE_TABLE = new Language[0x110000];
         Arrays.fill(LANGUAGE_TABLE, Language.UNKNOWN);
@@ -30,24 +32,12 @@ public class StringHelper {
     }
 
     public static byte[] digest(String data) {
-        return DIGEST.digest(data.getBytes(StandardCharsets.UTF_8));
+        return DIGEST.get().digest(data.getBytes(StandardCharsets.UTF_8));
     }
 
     public static void filterKeysByPattern(Set<String> keys, String pattern) {
-        String[] parts = pattern.split("\\*");
-        keys.removeIf(s -> {
-            int cursor = 0;
-            for (String part : parts) {
-                if (part.isEmpty()) {
-                    continue;
-                }
-                cursor = s.indexOf(part, cursor);
-                if (cursor < 0) {
-                    return true;
-                }
-            }
-            return false;
-        });
+        GlobPattern glob = GlobPattern.compile(pattern);
+        keys.removeIf(s -> !glob.matches(s));
     }
 
     public static Language[] detectLanguage(String source) {
@@ -0,0 +1,166 @@
+package indi.sophronia.tools.cache.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefaultMemoryCacheTest {
+    @Test
+    void roundTrip() {
+        DefaultMemoryCache cache = new DefaultMemoryCache();
+        cache.init();
+        try {
+            cache.savePersist("a", "1");
+            cache.save("b", "2", 60_000);
+            cache.savePersist("a", "updated");
+            cache.invalidate("missing");
+
+            assertEquals("updated", cache.load("a"));
+            assertEquals("2", cache.load("b"));
+            assertEquals(0, cache.expireAt("a"));
+            assertTrue(cache.expireAt("b") > System.currentTimeMillis());
+
+            cache.invalidate("a");
+            assertNull(cache.load("a"));
+            assertEquals(Set.of("b"), cache.keys("*"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void expiredEntriesAreRemoved() throws InterruptedException {
+        DefaultMemoryCache cache = new DefaultMemoryCache();
+        cache.setExpirationPrecision(10);
+        cache.init();
+        try {
+            cache.save("short", "value", 20);
+            cache.save("updated", "value", 20);
+            cache.savePersist("updated", "persisted");
+            cache.savePersist("long", "value");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.keys("*").contains("short") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Set.of("updated", "long"), cache.keys("*"));
+            assertEquals("persisted", cache.load("updated"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * the writes are replayed into the policy by whichever thread gets it, none may be left behind
+     */
+    @Test
+    void concurrentWritesStayWithinBound() throws InterruptedException {
+        DefaultMemoryCache cache = new DefaultMemoryCache();
+        cache.setMaximumSize(1000);
+        cache.init();
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 100_000; i++) {
+                        String key = "key" + random.nextInt(5000);
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                cache.save(key, i, 60_000);
+                                break;
+                            case 1:
+                                cache.invalidate(key);
+                                break;
+                            default:
+                                cache.loadOrSave(key, () -> 1, 60_000);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+            int size = cache.keys("*").size();
+            assertTrue(size <= 1000, () -> size + " entries");
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * a hot set read often survives a scan of keys read once
+     */
+    @Test
+    void frequentEntriesSurviveScan() {
+        DefaultMemoryCache cache = new DefaultMemoryCache();
+        cache.setMaximumSize(1000);
+        cache.init();
+        try {
+            for (int i = 0; i < 200; i++) {
+                cache.savePersist("hot" + i, i);
+            }
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 200; i++) {
+                    cache.load("hot" + i);
+                }
+            }
+            for (int i = 0; i < 100_000; i++) {
+                cache.savePersist("scan" + i, i);
+                if (i % 10 == 0) {
+                    cache.load("hot" + (i / 10 % 200));
+                }
+            }
+
+            int hot = 0;
+            for (int i = 0; i < 200; i++) {
+                if (cache.load("hot" + i) != null) {
+                    hot++;
+                }
+            }
+            assertTrue(hot >= 190, hot + " hot entries left");
+            assertTrue(cache.keys("*").size() <= 1000);
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        DefaultMemoryCache cache = new DefaultMemoryCache();
+        cache.init();
+        try {
+            AtomicInteger calls = new AtomicInteger();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            Future<?>[] results = new Future<?>[4];
+            for (int t = 0; t < results.length; t++) {
+                results[t] = executor.submit(() -> cache.loadOrSavePersist("key", () -> {
+                    calls.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "value";
+                }));
+            }
+            started.await();
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<?> result : results) {
+                assertEquals("value", result.get(10, TimeUnit.SECONDS));
+            }
+            executor.shutdown();
+            assertEquals(1, calls.get());
+        } finally {
+            cache.destroy();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.ScanPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileCacheTest {
+    @TempDir
+    Path dir;
+
+    private FileCache open(boolean memoryMapped) {
+        return open("cache", memoryMapped);
+    }
+
+    private FileCache open(String name, boolean memoryMapped) {
+        FileCache cache = new FileCache(dir.resolve(name).toString());
+        cache.setMemoryMapped(memoryMapped);
+        cache.init();
+        return cache;
+    }
+
+    @Test
+    void roundTrip() {
+        FileCache cache = open(false);
+        try {
+            cache.savePersist("a", "1");
+            cache.save("b", "2", 60_000);
+            cache.saveBatchPersist(Map.of("c", "3", "d", "4"));
+            cache.saveBatch(Map.of("e", "5"), 60_000);
+            cache.savePersist("a", "updated");
+
+            assertEquals("updated", cache.load("a"));
+            assertEquals("2", cache.load("b"));
+            assertEquals(Map.of("c", "3", "d", "4", "e", "5"), cache.loadBatch(List.of("c", "d", "e", "missing")));
+            assertNull(cache.load("missing"));
+            assertEquals(0, cache.expireAt("a"));
+            assertTrue(cache.expireAt("b") > System.currentTimeMillis());
+            assertEquals(-1, cache.expireAt("missing"));
+
+            cache.invalidate("a");
+            cache.invalidateBatch(List.of("c", "missing"));
+            assertNull(cache.load("a"));
+            assertNull(cache.load("c"));
+            assertEquals(Set.of("b", "d", "e"), cache.keys("*"));
+            assertEquals(Set.of("d"), cache.keys("d"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void expiredValuesAreGone() throws InterruptedException {
+        FileCache cache = open(false);
+        try {
+            cache.save("short", "value", 1);
+            cache.savePersist("long", "value");
+            Thread.sleep(20);
+
+            assertNull(cache.load("short"));
+            assertEquals(-1, cache.expireAt("short"));
+            assertEquals(Set.of("long"), cache.keys("*"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void reopenKeepsValues() {
+        for (boolean memoryMapped : new boolean[]{false, true}) {
+            FileCache cache = open(memoryMapped);
+            Map<String, String> batch = new HashMap<>();
+            for (int i = 0; i < 5000; i++) {
+                batch.put("key" + i, "value" + i);
+            }
+            cache.saveBatchPersist(batch);
+            cache.save("expiring", "value", 60_000);
+            cache.invalidate("key7");
+            long expireAt = cache.expireAt("expiring");
+            cache.destroy();
+
+            cache = open(memoryMapped);
+            try {
+                for (int i = 0; i < 5000; i++) {
+                    assertEquals(i == 7 ? null : "value" + i, cache.load("key" + i));
+                }
+                assertEquals(expireAt, cache.expireAt("expiring"));
+            } finally {
+                cache.destroy();
+            }
+        }
+    }
+
+    /**
+     * writes through a process that halts without closing the cache, so that only the write-ahead log holds
+     * the writes, then appends a torn record to the log
+     */
+    @Test
+    void replaysWriteAheadLogAfterCrash() throws Exception {
+        String fileName = dir.resolve("cache").toString();
+        Process process = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                CrashingWriter.class.getName(), fileName
+        ).inheritIO().start();
+        assertEquals(0, process.waitFor());
+        Files.write(Path.of(fileName + ".wal.kvdb"), new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+        FileCache cache = open(false);
+        try {
+            for (int i = 0; i < CrashingWriter.COUNT; i++) {
+                String expected = i % 7 == 0 ? null : i == 1 ? "new" : "value" + i;
+                assertEquals(expected, cache.load("key" + i), "key" + i);
+            }
+        } finally {
+            cache.destroy();
+        }
+        assertEquals(0, Files.size(Path.of(fileName + ".wal.kvdb")));
+    }
+
+    static class CrashingWriter {
+        static final int COUNT = 3000;
+
+        public static void main(String[] args) {
+            FileCache cache = new FileCache(args[0]);
+            cache.init();
+            Map<String, String> batch = new HashMap<>();
+            for (int i = 0; i < COUNT; i++) {
+                batch.put("key" + i, "value" + i);
+            }
+            cache.saveBatchPersist(batch);
+            for (int i = 0; i < COUNT; i += 7) {
+                cache.invalidate("key" + i);
+            }
+            cache.savePersist("key1", "new");
+            Runtime.getRuntime().halt(0);
+        }
+    }
+
+    /**
+     * enough keys inserted one small batch at a time for the new rows to be merged into the index on the way
+     */
+    @Test
+    void scanVisitsEveryKeyOnce() {
+        for (boolean memoryMapped : new boolean[]{false, true}) {
+            FileCache cache = open(memoryMapped ? "mapped" : "cache", memoryMapped);
+            try {
+                Set<String> expected = new HashSet<>();
+                for (int i = 0; i < 70_000; i += 100) {
+                    Map<String, String> batch = new HashMap<>();
+                    for (int j = i; j < i + 100; j++) {
+                        batch.put("key" + j, "value" + j);
+                        expected.add("key" + j);
+                    }
+                    cache.saveBatchPersist(batch);
+                }
+                for (int i = 0; i < 70_000; i += 13) {
+                    cache.invalidate("key" + i);
+                    expected.remove("key" + i);
+                }
+                cache.savePersist("other", "value");
+
+                assertEquals(expected, scanAll(cache, "key*", 100));
+                assertEquals(Set.of("other"), scanAll(cache, "oth*", 1000));
+                assertEquals(expected, cache.keys("key*"));
+            } finally {
+                cache.destroy();
+            }
+        }
+    }
+
+    /**
+     * values alike, as translations are, so that the dictionary sampled at the conversion pays off
+     */
+    @Test
+    void compressedValuesRoundTrip() throws Exception {
+        Map<String, String> translations = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            translations.put("sentence " + i, "这是第" + i + "个句子的翻译, the translation of sentence number " + i);
+        }
+
+        FileCache raw = open("raw", false);
+        raw.saveBatchPersist(translations);
+        raw.destroy();
+
+        FileCache compressed = new FileCache(dir.resolve("compressed").toString());
+        compressed.setCompressValues(true);
+        compressed.init();
+        compressed.saveBatchPersist(translations);
+        compressed.destroy();
+
+        // converted at init, the files have grown past the size that gets a dictionary
+        for (int round = 0; round < 2; round++) {
+            compressed = new FileCache(dir.resolve("compressed").toString());
+            compressed.setCompressValues(true);
+            compressed.init();
+            try {
+                for (int i = 0; i < 30_000; i += 7) {
+                    assertEquals(translations.get("sentence " + i), compressed.load("sentence " + i));
+                }
+            } finally {
+                compressed.destroy();
+            }
+        }
+
+        long rawSize = Files.size(dir.resolve("raw.data.kvdb"));
+        long compressedSize = Files.size(dir.resolve("compressed.data.kvdb"));
+        assertTrue(compressedSize * 2 < rawSize, () -> compressedSize + " bytes compressed, " + rawSize + " raw");
+
+        // switching the setting back converts the files again
+        raw = open("compressed", false);
+        try {
+            assertEquals(translations.get("sentence 12"), raw.load("sentence 12"));
+        } finally {
+            raw.destroy();
+        }
+    }
+
+    private static Set<String> scanAll(FileCache cache, String pattern, int count) {
+        Set<String> keys = new HashSet<>();
+        long cursor = 0;
+        do {
+            ScanPage page = cache.scan(cursor, pattern, count);
+            for (String key : page.getKeys()) {
+                assertTrue(keys.add(key), () -> "returned twice: " + key);
+            }
+            cursor = page.getCursor();
+        } while (cursor != 0);
+        return keys;
+    }
+}
@@ -0,0 +1,167 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.ScanPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStructuredCacheTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * small segments, so that the tests roll over several of them
+     */
+    private LogStructuredCache open() {
+        LogStructuredCache cache = new LogStructuredCache(dir.resolve("cache").toString());
+        cache.setSegmentSize(64 << 10);
+        cache.init();
+        return cache;
+    }
+
+    @Test
+    void roundTrip() throws InterruptedException {
+        LogStructuredCache cache = open();
+        try {
+            cache.savePersist("a", "1");
+            cache.save("b", "2", 60_000);
+            cache.saveBatchPersist(Map.of("c", "3", "d", "4"));
+            cache.save("short", "value", 1);
+            cache.savePersist("a", "updated");
+            cache.invalidateBatch(List.of("c", "missing"));
+            Thread.sleep(20);
+
+            assertEquals("updated", cache.load("a"));
+            assertEquals("2", cache.load("b"));
+            assertNull(cache.load("c"));
+            assertNull(cache.load("short"));
+            assertEquals(0, cache.expireAt("a"));
+            assertTrue(cache.expireAt("b") > System.currentTimeMillis());
+            assertEquals(Set.of("a", "b", "d"), cache.keys("*"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void reopenKeepsValuesOverSegments() {
+        LogStructuredCache cache = open();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 2000; i++) {
+                cache.savePersist("key" + i, "value" + i + "-" + round);
+            }
+        }
+        cache.invalidate("key9");
+        cache.destroy();
+
+        cache = open();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(i == 9 ? null : "value" + i + "-2", cache.load("key" + i));
+            }
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * writes through a process that halts without closing the cache, so that the active segment has no hint,
+     * then appends a torn record to it
+     */
+    @Test
+    void recoversAfterCrash() throws Exception {
+        String fileName = dir.resolve("cache").toString();
+        Process process = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                CrashingWriter.class.getName(), fileName
+        ).inheritIO().start();
+        assertEquals(0, process.waitFor());
+
+        Path activeSegment;
+        try (Stream<Path> files = Files.list(dir)) {
+            activeSegment = files.filter(file -> file.getFileName().toString().endsWith(".log.kvdb"))
+                    .max(Comparator.comparingInt(LogStructuredCacheTest::segmentId))
+                    .orElseThrow();
+        }
+        Files.write(activeSegment, new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 0}, StandardOpenOption.APPEND);
+
+        LogStructuredCache cache = open();
+        try {
+            for (int i = 0; i < CrashingWriter.COUNT; i++) {
+                assertEquals(i % 7 == 0 ? null : "value" + i, cache.load("key" + i), "key" + i);
+            }
+            // appended over the cut tail
+            cache.savePersist("after", "crash");
+        } finally {
+            cache.destroy();
+        }
+
+        cache = open();
+        try {
+            assertEquals("crash", cache.load("after"));
+            assertEquals("value1", cache.load("key1"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    private static int segmentId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("cache.".length(), name.length() - ".log.kvdb".length()));
+    }
+
+    static class CrashingWriter {
+        static final int COUNT = 3000;
+
+        public static void main(String[] args) {
+            LogStructuredCache cache = new LogStructuredCache(args[0]);
+            cache.setSegmentSize(64 << 10);
+            cache.init();
+            for (int i = 0; i < COUNT; i++) {
+                cache.savePersist("key" + i, "value" + i);
+            }
+            for (int i = 0; i < COUNT; i += 7) {
+                cache.invalidate("key" + i);
+            }
+            Runtime.getRuntime().halt(0);
+        }
+    }
+
+    @Test
+    void scanVisitsEveryKeyOnce() {
+        LogStructuredCache cache = open();
+        try {
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < 5000; i++) {
+                cache.savePersist("key" + i, "value" + i);
+                expected.add("key" + i);
+            }
+            for (int i = 0; i < 5000; i += 11) {
+                cache.invalidate("key" + i);
+                expected.remove("key" + i);
+            }
+            cache.savePersist("other", "value");
+
+            Set<String> keys = new HashSet<>();
+            long cursor = 0;
+            do {
+                ScanPage page = cache.scan(cursor, "key*", 100);
+                for (String key : page.getKeys()) {
+                    assertTrue(keys.add(key), () -> "returned twice: " + key);
+                }
+                cursor = page.getCursor();
+            } while (cursor != 0);
+            assertEquals(expected, keys);
+        } finally {
+            cache.destroy();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.ScanPage;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapCacheTest {
+    private static OffHeapCache open(int slabSize, long capacity) {
+        OffHeapCache cache = new OffHeapCache();
+        cache.setSlabSize(slabSize);
+        cache.setCapacity(capacity);
+        cache.init();
+        return cache;
+    }
+
+    @Test
+    void roundTrip() throws InterruptedException {
+        OffHeapCache cache = open(64 << 10, 1 << 20);
+        try {
+            cache.savePersist("a", "1");
+            cache.save("b", "2", 60_000);
+            cache.saveBatchPersist(Map.of("c", "3", "d", "4"));
+            cache.save("short", "value", 1);
+            cache.savePersist("a", "updated");
+            cache.invalidateBatch(List.of("c", "missing"));
+            Thread.sleep(20);
+
+            assertEquals("updated", cache.load("a"));
+            assertEquals("2", cache.load("b"));
+            assertNull(cache.load("c"));
+            assertNull(cache.load("short"));
+            assertEquals(0, cache.expireAt("a"));
+            assertTrue(cache.expireAt("b") > System.currentTimeMillis());
+            assertEquals(-1, cache.expireAt("short"));
+            assertEquals(Set.of("a", "b", "d"), cache.keys("*"));
+            assertEquals(Set.of("d"), cache.keys("d"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * four slabs of about ten records each, so that the ring comes around several times
+     */
+    @Test
+    void recyclesOldestSlab() {
+        OffHeapCache cache = open(1024, 4096);
+        try {
+            for (int i = 0; i < 200; i++) {
+                cache.savePersist(String.format("key%03d", i), "x".repeat(70));
+            }
+
+            for (int i = 0; i < 200; i++) {
+                String value = cache.load(String.format("key%03d", i));
+                if (i < 150) {
+                    assertNull(value, "key" + i);
+                } else if (i >= 180) {
+                    assertEquals("x".repeat(70), value, "key" + i);
+                }
+            }
+            Set<String> keys = cache.keys("key*");
+            assertTrue(keys.size() <= 4096 / 100, () -> keys.size() + " keys left");
+            assertTrue(keys.contains("key199"));
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void rejectsCapacityBelowTwoRecordHeaders() {
+        OffHeapCache cache = new OffHeapCache();
+        cache.setCapacity(30);
+        assertThrows(IllegalArgumentException.class, cache::init);
+    }
+
+    @Test
+    void writesThroughAndReadsThroughUpstream() throws InterruptedException {
+        DefaultMemoryCache upstream = new DefaultMemoryCache();
+        upstream.init();
+        OffHeapCache cache = new OffHeapCache();
+        cache.setSlabSize(1024);
+        cache.setCapacity(4096);
+        cache.setUpstream(upstream);
+        cache.init();
+        try {
+            cache.save("written", "value", 60_000);
+            assertEquals("value", upstream.load("written"));
+            assertEquals(upstream.expireAt("written"), cache.expireAt("written"));
+
+            // buffered on the first read, then served here while upstream no longer has it
+            upstream.savePersist("loaded", "value");
+            assertEquals("value", cache.load("loaded"));
+            upstream.invalidate("loaded");
+            assertEquals("value", cache.load("loaded"));
+
+            // never buffered beyond the expiration upstream
+            upstream.save("expiring", "value", 30);
+            assertEquals("value", cache.load("expiring"));
+            Thread.sleep(60);
+            assertNull(cache.load("expiring"));
+
+            // too large for a slab, kept by upstream alone, the previous value is not served any more
+            cache.savePersist("large", "small");
+            cache.savePersist("large", "x".repeat(2000));
+            upstream.invalidate("large");
+            assertNull(cache.load("large"));
+
+            cache.invalidate("written");
+            assertNull(upstream.load("written"));
+            assertNull(cache.load("written"));
+        } finally {
+            cache.destroy();
+            upstream.destroy();
+        }
+    }
+
+    /**
+     * the table grows several times between pages, no key may be skipped
+     */
+    @Test
+    void scanVisitsEveryKeyWhileTableGrows() {
+        OffHeapCache cache = open(1 << 20, 8 << 20);
+        try {
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                cache.savePersist("key" + i, "value" + i);
+                expected.add("key" + i);
+            }
+
+            Set<String> keys = new HashSet<>();
+            long cursor = 0;
+            int added = 0;
+            do {
+                ScanPage page = cache.scan(cursor, "key*", 50);
+                for (String key : page.getKeys()) {
+                    assertTrue(keys.add(key), () -> "returned twice: " + key);
+                }
+                for (int i = 0; i < 100; i++) {
+                    cache.savePersist("other" + added++, "value");
+                }
+                cursor = page.getCursor();
+            } while (cursor != 0);
+            assertEquals(expected, keys);
+        } finally {
+            cache.destroy();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package indi.sophronia.tools.cache.impl;
+
+import indi.sophronia.tools.cache.ScanPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedFileCacheTest {
+    @TempDir
+    Path dir;
+
+    private ShardedFileCache open(int shardCount) {
+        ShardedFileCache cache = new ShardedFileCache(dir.resolve("cache").toString(), shardCount);
+        cache.init();
+        return cache;
+    }
+
+    private static Map<String, String> entries(int count) {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        return entries;
+    }
+
+    @Test
+    void roundTrip() {
+        ShardedFileCache cache = open(4);
+        try {
+            Map<String, String> entries = entries(1000);
+            cache.saveBatchPersist(entries);
+            cache.save("expiring", "value", 60_000);
+            cache.invalidateBatch(List.of("key1", "key2", "missing"));
+            cache.invalidate("key3");
+
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i >= 1 && i <= 3 ? null : "value" + i, cache.load("key" + i));
+            }
+            assertEquals(Map.of("key0", "value0", "key4", "value4"),
+                    cache.loadBatch(List.of("key0", "key1", "key4", "missing")));
+            assertTrue(cache.expireAt("expiring") > System.currentTimeMillis());
+            assertEquals(997, cache.keys("key*").size());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void reopenKeepsValues() {
+        ShardedFileCache cache = open(4);
+        cache.saveBatchPersist(entries(1000));
+        cache.invalidate("key5");
+        cache.destroy();
+
+        cache = open(4);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i == 5 ? null : "value" + i, cache.load("key" + i));
+            }
+        } finally {
+            cache.destroy();
+        }
+
+        assertThrows(IllegalStateException.class, () -> open(8));
+    }
+
+    @Test
+    void scanVisitsEveryShard() {
+        ShardedFileCache cache = open(4);
+        try {
+            Map<String, String> entries = entries(5000);
+            cache.saveBatchPersist(entries);
+
+            Set<String> keys = new HashSet<>();
+            long cursor = 0;
+            do {
+                ScanPage page = cache.scan(cursor, "key*", 100);
+                for (String key : page.getKeys()) {
+                    assertTrue(keys.add(key), () -> "returned twice: " + key);
+                }
+                cursor = page.getCursor();
+            } while (cursor != 0);
+            assertEquals(entries.keySet(), keys);
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    void migratesUnshardedFiles() {
+        String fileName = dir.resolve("cache").toString();
+        FileCache unsharded = new FileCache(fileName);
+        unsharded.init();
+        unsharded.saveBatchPersist(entries(1000));
+        unsharded.save("expiring", "value", 60_000);
+        unsharded.destroy();
+
+        ShardedFileCache cache = open(4);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("value" + i, cache.load("key" + i));
+            }
+            assertTrue(cache.expireAt("expiring") > System.currentTimeMillis());
+        } finally {
+            cache.destroy();
+        }
+        assertFalse(Files.exists(Path.of(fileName + ".index.kvdb")));
+        assertTrue(Files.exists(Path.of(fileName + ".index.migrated.kvdb")));
+    }
+}
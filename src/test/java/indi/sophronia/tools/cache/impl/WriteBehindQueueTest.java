@@ -0,0 +1,192 @@
+package indi.sophronia.tools.cache.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindQueueTest {
+    /**
+     * counts what reaches it, can hold the first batch until released, and can fail the first batches
+     */
+    private static class RecordingCache extends DefaultMemoryCache {
+        private final AtomicInteger batches = new AtomicInteger();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released;
+
+        private RecordingCache(boolean held) {
+            released = new CountDownLatch(held ? 1 : 0);
+            init();
+        }
+
+        private void hold() {
+            entered.countDown();
+            try {
+                assertTrue(released.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failures.getAndUpdate(left -> Math.max(left - 1, 0)) > 0) {
+                throw new IllegalStateException("tier unavailable");
+            }
+        }
+
+        @Override
+        public <T> void saveBatch(Map<String, T> data, long expireMillis) {
+            hold();
+            batches.incrementAndGet();
+            writes.addAndGet(data.size());
+            super.saveBatch(data, expireMillis);
+        }
+
+        @Override
+        public void invalidateBatch(Collection<String> keys) {
+            hold();
+            batches.incrementAndGet();
+            writes.addAndGet(keys.size());
+            super.invalidateBatch(keys);
+        }
+
+        /**
+         * returns once the drainer holds a first batch
+         */
+        private void awaitHeld() throws InterruptedException {
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void coalescesWritesOfAKey() throws InterruptedException {
+        RecordingCache upstream = new RecordingCache(true);
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 1000, false);
+        queue.save("first", "value", 0L);
+        upstream.awaitHeld();
+
+        for (int i = 0; i < 100_000; i++) {
+            queue.save("key" + i % 50, "value" + i, 0L);
+        }
+        upstream.released.countDown();
+        queue.close();
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value" + (100_000 - 50 + i), upstream.load("key" + i));
+        }
+        assertEquals(51, upstream.writes.get());
+        assertEquals(2, upstream.batches.get());
+        upstream.destroy();
+    }
+
+    @Test
+    void pendingShowsQueuedWrites() throws InterruptedException {
+        RecordingCache upstream = new RecordingCache(true);
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 1000, false);
+        queue.save("inFlight", "value", 0L);
+        upstream.awaitHeld();
+        queue.save("saved", "value", 60_000);
+        queue.invalidate("invalidated");
+
+        assertArrayEquals(new Object[]{"value", 0L}, queue.pending("inFlight"));
+        assertArrayEquals(new Object[]{"value", 60_000L}, queue.pending("saved"));
+        assertArrayEquals(new Object[]{null, 0L}, queue.pending("invalidated"));
+        assertNull(queue.pending("missing"));
+
+        upstream.released.countDown();
+        queue.close();
+        assertNull(queue.pending("saved"));
+        assertEquals("value", upstream.load("saved"));
+        upstream.destroy();
+    }
+
+    /**
+     * the write in flight counts against the bound
+     */
+    @Test
+    void writersWaitAtCapacity() throws InterruptedException {
+        RecordingCache upstream = new RecordingCache(true);
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 4, false);
+        queue.save("key0", "value", 0L);
+        upstream.awaitHeld();
+        for (int i = 1; i < 4; i++) {
+            queue.save("key" + i, "value", 0L);
+        }
+        // replaces a pending write, so it does not wait
+        queue.save("key1", "updated", 0L);
+
+        Thread writer = new Thread(() -> queue.save("key4", "value", 0L));
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+
+        upstream.released.countDown();
+        writer.join(10_000);
+        assertFalse(writer.isAlive());
+        queue.close();
+        assertEquals("updated", upstream.load("key1"));
+        assertEquals("value", upstream.load("key4"));
+        upstream.destroy();
+    }
+
+    @Test
+    void shedsWritesWhenFull() throws InterruptedException {
+        RecordingCache upstream = new RecordingCache(true);
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 4, true);
+        queue.save("key0", "value", 0L);
+        upstream.awaitHeld();
+        for (int i = 1; i < 4; i++) {
+            queue.save("key" + i, "value", 0L);
+        }
+        queue.save("key4", "value", 0L);
+        assertNull(queue.pending("key4"));
+
+        upstream.released.countDown();
+        queue.close();
+        assertEquals("value", upstream.load("key3"));
+        assertNull(upstream.load("key4"));
+        upstream.destroy();
+    }
+
+    @Test
+    void retriesFailedBatch() throws InterruptedException {
+        RecordingCache upstream = new RecordingCache(false);
+        upstream.failures.set(1);
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 1000, false);
+        queue.save("key", "value", 0L);
+
+        // pending until the tier has it
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (queue.pending("key") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, upstream.failures.get());
+        assertEquals("value", upstream.load("key"));
+        assertEquals(1, upstream.batches.get());
+        queue.close();
+        upstream.destroy();
+    }
+
+    @Test
+    void closeFlushesPendingWrites() {
+        RecordingCache upstream = new RecordingCache(false);
+        upstream.savePersist("stale", "value");
+        WriteBehindQueue queue = new WriteBehindQueue(upstream, 100, false);
+        for (int i = 0; i < 1000; i++) {
+            queue.save("key" + i, "value" + i, i % 2 == 0 ? 0L : 60_000L);
+        }
+        queue.invalidate("stale");
+        queue.close();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, upstream.load("key" + i));
+            assertEquals(i % 2 == 0, upstream.expireAt("key" + i) == 0);
+        }
+        assertNull(upstream.load("stale"));
+        assertThrows(IllegalStateException.class, () -> queue.save("late", "value", 0L));
+        upstream.destroy();
+    }
+}